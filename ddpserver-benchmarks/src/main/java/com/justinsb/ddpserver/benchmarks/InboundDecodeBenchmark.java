@@ -0,0 +1,92 @@
+package com.justinsb.ddpserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.justinsb.ddpserver.DdpMessage;
+
+/**
+ * Decoding inbound messages: the old tree parse against the streaming {@link DdpMessage}.
+ *
+ * "dispatch" reads only what we route on; "withParams" also reads the params, as a sub or method will.
+ *
+ * "subParamsFirst" is a sub with its params ahead of msg, so DdpMessage doesn't yet know it needs them, and reads them
+ * in a second pass; it is what parsing params lazily would cost every sub & method.
+ *
+ * Run with: java -jar target/benchmarks.jar InboundDecodeBenchmark
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InboundDecodeBenchmark {
+
+  @Param({ "ping", "sub", "subParamsFirst", "method" })
+  public String type;
+
+  String message;
+
+  @Setup
+  public void setup() {
+    if (type.equals("ping")) {
+      message = "{\"msg\":\"ping\",\"id\":\"42\"}";
+    } else if (type.equals("sub")) {
+      message = "{\"msg\":\"sub\",\"id\":\"a1b2c3\",\"name\":\"todos\",\"params\":[{\"listId\":\"xyz\"}]}";
+    } else if (type.equals("subParamsFirst")) {
+      message = "{\"params\":[{\"listId\":\"xyz\"}],\"msg\":\"sub\",\"id\":\"a1b2c3\",\"name\":\"todos\"}";
+    } else if (type.equals("method")) {
+      message = "{\"msg\":\"method\",\"method\":\"/todos/insert\",\"params\":[{\"text\":\"Buy milk\",\"listId\":\"xyz\","
+          + "\"checked\":false,\"createdAt\":{\"$date\":1420070400000},\"tags\":[\"home\",\"shopping\"]}],\"id\":\"7\"}";
+    } else {
+      throw new IllegalArgumentException(type);
+    }
+  }
+
+  @Benchmark
+  public void treeDispatch(Blackhole blackhole) {
+    JsonObject json = (JsonObject) new JsonParser().parse(message);
+    blackhole.consume(json.get("msg").getAsString());
+    JsonElement id = json.get("id");
+    blackhole.consume(id == null ? null : id.getAsString());
+  }
+
+  @Benchmark
+  public void treeWithParams(Blackhole blackhole) {
+    JsonObject json = (JsonObject) new JsonParser().parse(message);
+    blackhole.consume(json.get("msg").getAsString());
+    blackhole.consume(json.get("params"));
+  }
+
+  @Benchmark
+  public void streamingDispatch(Blackhole blackhole) {
+    DdpMessage json = DdpMessage.parse(message);
+    blackhole.consume(json.getMsg());
+    blackhole.consume(json.getId());
+  }
+
+  @Benchmark
+  public void streamingWithParams(Blackhole blackhole) {
+    DdpMessage json = DdpMessage.parse(message);
+    blackhole.consume(json.getMsg());
+    blackhole.consume(json.getParams());
+  }
+
+}
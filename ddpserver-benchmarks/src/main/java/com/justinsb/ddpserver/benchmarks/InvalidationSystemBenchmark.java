@@ -0,0 +1,96 @@
+package com.justinsb.ddpserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.justinsb.ddpserver.triggeredpoll.InMemoryInvalidationSystem;
+import com.justinsb.ddpserver.triggeredpoll.InvalidationSystem;
+
+/**
+ * Contention benchmark for the invalidation system: 32 writer threads, spread over one hot key or many unrelated keys.
+ * 
+ * Run with: java -jar target/benchmarks.jar InvalidationSystemBenchmark
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class InvalidationSystemBenchmark {
+
+  @Param({ "lockfree", "synchronized" })
+  public String implementation;
+
+  @Param({ "1", "1024" })
+  public int keyCount;
+
+  InvalidationSystem invalidationSystem;
+  String[] keys;
+
+  @Setup
+  public void setup() {
+    if (implementation.equals("lockfree")) {
+      invalidationSystem = new InMemoryInvalidationSystem();
+    } else {
+      invalidationSystem = new SynchronizedInvalidationSystem();
+    }
+
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = "collection" + i;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    int next;
+
+    @Setup
+    public void setup() {
+      next = System.identityHashCode(this);
+    }
+
+    String nextKey(String[] keys) {
+      next = next * 1103515245 + 12345;
+      return keys[(next >>> 8) % keys.length];
+    }
+  }
+
+  @Benchmark
+  public long notifyChange(ThreadState state) {
+    return invalidationSystem.notifyChange(state.nextKey(keys));
+  }
+
+  /**
+   * Mimics a subscription: re-arm a watch on the key, then write to it (which fires the watch)
+   */
+  @Benchmark
+  public ListenableFuture<Long> watchAndNotify(ThreadState state) {
+    String key = state.nextKey(keys);
+    ListenableFuture<Long> watch = invalidationSystem.waitForPosition(key, invalidationSystem.getPosition(key) + 1);
+    invalidationSystem.notifyChange(key);
+    return watch;
+  }
+
+  @Benchmark
+  public long getPosition(ThreadState state) {
+    return invalidationSystem.getPosition(state.nextKey(keys));
+  }
+
+}
@@ -0,0 +1,111 @@
+package com.justinsb.ddpserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.justinsb.ddpserver.DdpDocument;
+import com.justinsb.ddpserver.DdpDocumentStore;
+import com.justinsb.ddpserver.Jsonable;
+
+/**
+ * Encoding outbound document messages: building a message tree and serializing it (as we used to, per session),
+ * against encoding a new version in the {@link DdpDocumentStore}.
+ *
+ * Each document call moves to a new version, so the cached messages are always built afresh; "fromJson" also pays for
+ * serializing and hashing the stored value. Decoding is covered by {@link InboundDecodeBenchmark}.
+ *
+ * Run with: java -jar target/benchmarks.jar JsonEncodeBenchmark
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonEncodeBenchmark {
+
+  JsonObject fieldsA;
+  JsonObject fieldsB;
+  Jsonable valueA;
+  Jsonable valueB;
+
+  DdpDocumentStore store;
+  DdpDocument current;
+  boolean flip;
+
+  @Setup
+  public void setup() {
+    fieldsA = buildFields(false);
+    fieldsB = buildFields(true);
+    valueA = Jsonable.fromJson(fieldsA);
+    valueB = Jsonable.fromJson(fieldsB);
+
+    store = new DdpDocumentStore();
+    current = store.acquire("todos", "id1", valueA);
+  }
+
+  static JsonObject buildFields(boolean checked) {
+    JsonObject fields = new JsonObject();
+    fields.addProperty("text", "Buy milk");
+    fields.addProperty("listId", "xyz");
+    fields.addProperty("checked", checked);
+    JsonObject createdAt = new JsonObject();
+    createdAt.addProperty("$date", 1420070400000L);
+    fields.add("createdAt", createdAt);
+    JsonArray tags = new JsonArray();
+    tags.add(new JsonPrimitive("home"));
+    tags.add(new JsonPrimitive("shopping"));
+    fields.add("tags", tags);
+    return fields;
+  }
+
+  @Benchmark
+  public String treeAdded() {
+    flip = !flip;
+    JsonObject added = new JsonObject();
+    added.addProperty("msg", "added");
+    added.addProperty("collection", "todos");
+    added.addProperty("id", "id1");
+    added.add("fields", flip ? fieldsB : fieldsA);
+    return added.toString();
+  }
+
+  @Benchmark
+  public String documentAdded() {
+    return nextVersion(flip ? valueA : valueB).getAddedMessage();
+  }
+
+  @Benchmark
+  public String documentChanged() {
+    DdpDocument previous = current;
+    return nextVersion(flip ? valueA : valueB).getChangedMessage(previous);
+  }
+
+  @Benchmark
+  public String fromJsonAdded() {
+    return nextVersion(Jsonable.fromJson(flip ? fieldsA : fieldsB)).getAddedMessage();
+  }
+
+  DdpDocument nextVersion(Jsonable value) {
+    flip = !flip;
+    DdpDocument next = store.acquire("todos", "id1", value);
+    store.release(current);
+    current = next;
+    return next;
+  }
+
+}
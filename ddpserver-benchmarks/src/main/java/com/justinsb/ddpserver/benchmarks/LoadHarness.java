@@ -0,0 +1,297 @@
+package com.justinsb.ddpserver.benchmarks;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.justinsb.ddpserver.DdpServer;
+import com.justinsb.ddpserver.examples.inmem.InMemoryStorage;
+import com.justinsb.ddpserver.metrics.Histogram;
+import com.justinsb.ddpserver.triggeredpoll.InMemoryInvalidationSystem;
+import com.justinsb.ddpserver.triggeredpoll.TriggerDdpDataSource;
+
+/**
+ * End-to-end load test: starts a {@link DdpServer} in-process, connects many DDP clients over websockets on loopback,
+ * all subscribed to the same collection, and then inserts documents through one more client at a fixed rate.
+ *
+ * We report the time from sending each insert to the writer receiving "updated" (the write fence), the time until
+ * every subscriber has the document, and the rate at which added messages are delivered across all clients.
+ *
+ * The clients run in the same JVM as the server, so the numbers are for comparing releases on the same machine, not
+ * absolute capacity. Thousands of clients need a raised open file limit (ulimit -n).
+ *
+ * Run with: java -cp target/benchmarks.jar com.justinsb.ddpserver.benchmarks.LoadHarness --clients 2000 --writes 1000
+ *
+ */
+public class LoadHarness {
+
+  static final String COLLECTION = "items";
+
+  int clientCount = 1000;
+  int writeCount = 1000;
+  int writesPerSecond = 200;
+  boolean virtualThreads;
+  long timeoutSeconds = 120;
+
+  final Histogram writeToUpdated = new Histogram();
+  final Histogram writeToFanout = new Histogram();
+
+  /**
+   * When each insert was sent, by document id
+   */
+  final ConcurrentMap<String, Long> sentNanos = Maps.newConcurrentMap();
+
+  /**
+   * How many subscribers are still waiting for each document, by id
+   */
+  final ConcurrentMap<String, AtomicLong> outstanding = Maps.newConcurrentMap();
+
+  final AtomicLong addedCount = new AtomicLong();
+  final AtomicLong lastAddedNanos = new AtomicLong();
+
+  CountDownLatch readyLatch;
+  CountDownLatch updatedLatch;
+  CountDownLatch fanoutLatch;
+
+  public static void main(String[] args) throws Exception {
+    LoadHarness harness = new LoadHarness();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--clients")) {
+        harness.clientCount = Integer.parseInt(args[++i]);
+      } else if (arg.equals("--writes")) {
+        harness.writeCount = Integer.parseInt(args[++i]);
+      } else if (arg.equals("--rate")) {
+        harness.writesPerSecond = Integer.parseInt(args[++i]);
+      } else if (arg.equals("--timeout")) {
+        harness.timeoutSeconds = Long.parseLong(args[++i]);
+      } else if (arg.equals("--virtual-threads")) {
+        harness.virtualThreads = true;
+      } else {
+        throw new IllegalArgumentException("Unknown argument: " + arg);
+      }
+    }
+
+    harness.run();
+    System.exit(0);
+  }
+
+  /**
+   * A simulated client; subscribes to the collection once connected (unless it is the writer)
+   */
+  class Client extends Endpoint {
+    final boolean subscribe;
+    Session session;
+
+    Client(boolean subscribe) {
+      this.subscribe = subscribe;
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+      this.session = session;
+      session.addMessageHandler(new MessageHandler.Whole<String>() {
+        @Override
+        public void onMessage(String message) {
+          try {
+            gotMessage(message);
+          } catch (Exception e) {
+            System.err.println("Error handling message: " + message);
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+
+    void send(JsonObject message) throws IOException {
+      session.getBasicRemote().sendText(message.toString());
+    }
+
+    void connect() throws IOException {
+      JsonObject connect = new JsonObject();
+      connect.addProperty("msg", "connect");
+      connect.addProperty("version", "1");
+      JsonArray support = new JsonArray();
+      support.add(new JsonPrimitive("1"));
+      connect.add("support", support);
+      send(connect);
+    }
+
+    void gotMessage(String message) throws IOException {
+      JsonObject json = (JsonObject) new JsonParser().parse(message);
+      String msg = json.get("msg").getAsString();
+      if (msg.equals("connected")) {
+        if (subscribe) {
+          JsonObject sub = new JsonObject();
+          sub.addProperty("msg", "sub");
+          sub.addProperty("id", "s1");
+          sub.addProperty("name", COLLECTION);
+          sub.add("params", new JsonArray());
+          send(sub);
+        } else {
+          readyLatch.countDown();
+        }
+      } else if (msg.equals("ready")) {
+        readyLatch.countDown();
+      } else if (msg.equals("added")) {
+        gotAdded(json.get("id").getAsString());
+      } else if (msg.equals("updated")) {
+        for (JsonElement methodId : json.getAsJsonArray("methods")) {
+          gotUpdated(methodId.getAsString());
+        }
+      } else if (msg.equals("ping")) {
+        JsonObject pong = new JsonObject();
+        pong.addProperty("msg", "pong");
+        send(pong);
+      }
+    }
+  }
+
+  void gotAdded(String id) {
+    long now = System.nanoTime();
+    addedCount.incrementAndGet();
+    lastAddedNanos.set(now);
+
+    AtomicLong remaining = outstanding.get(id);
+    if (remaining != null && remaining.decrementAndGet() == 0) {
+      Long sent = sentNanos.get(id);
+      if (sent != null) {
+        writeToFanout.record(TimeUnit.NANOSECONDS.toMicros(now - sent));
+      }
+      fanoutLatch.countDown();
+    }
+  }
+
+  void gotUpdated(String methodId) {
+    // We use the document id as the method id
+    Long sent = sentNanos.get(methodId);
+    if (sent != null) {
+      writeToUpdated.recordSince(sent);
+      updatedLatch.countDown();
+    }
+  }
+
+  void run() throws Exception {
+    TriggerDdpDataSource dataSource = new TriggerDdpDataSource(new InMemoryStorage(),
+        new InMemoryInvalidationSystem());
+    if (virtualThreads) {
+      dataSource.useVirtualThreads();
+    }
+
+    Server server = DdpServer.start(dataSource, 0);
+    try {
+      int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+      URI uri = URI.create("ws://127.0.0.1:" + port + "/websocket");
+
+      WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+      ClientEndpointConfig config = ClientEndpointConfig.Builder.create().build();
+
+      readyLatch = new CountDownLatch(clientCount + 1);
+      updatedLatch = new CountDownLatch(writeCount);
+      fanoutLatch = new CountDownLatch(writeCount);
+
+      System.out.println("Connecting " + clientCount + " clients to " + uri);
+      long connectStart = System.nanoTime();
+      List<Client> clients = Lists.newArrayList();
+      for (int i = 0; i < clientCount; i++) {
+        Client client = new Client(true);
+        container.connectToServer(client, config, uri);
+        client.connect();
+        clients.add(client);
+      }
+      Client writer = new Client(false);
+      container.connectToServer(writer, config, uri);
+      writer.connect();
+
+      if (!readyLatch.await(timeoutSeconds, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Timed out waiting for subscriptions; " + readyLatch.getCount() + " not ready");
+      }
+      long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+      System.out.println("All subscribed in " + connectMillis + "ms");
+
+      System.out.println("Sending " + writeCount + " inserts at " + writesPerSecond + "/s");
+      long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, writesPerSecond);
+      long writeStart = System.nanoTime();
+      for (int i = 0; i < writeCount; i++) {
+        long due = writeStart + i * intervalNanos;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+
+        String id = "w" + i;
+        outstanding.put(id, new AtomicLong(clientCount));
+
+        JsonObject fields = new JsonObject();
+        fields.addProperty("_id", id);
+        fields.addProperty("n", i);
+        JsonArray params = new JsonArray();
+        params.add(fields);
+
+        JsonObject method = new JsonObject();
+        method.addProperty("msg", "method");
+        method.addProperty("method", "/" + COLLECTION + "/insert");
+        method.add("params", params);
+        method.addProperty("id", id);
+
+        sentNanos.put(id, System.nanoTime());
+        writer.send(method);
+      }
+
+      boolean complete = updatedLatch.await(timeoutSeconds, TimeUnit.SECONDS);
+      complete &= fanoutLatch.await(timeoutSeconds, TimeUnit.SECONDS);
+      if (!complete) {
+        System.out.println("Timed out: " + updatedLatch.getCount() + " writes without updated, "
+            + fanoutLatch.getCount() + " not delivered to every client");
+      }
+
+      long fanoutNanos = lastAddedNanos.get() - writeStart;
+      long added = addedCount.get();
+
+      System.out.println();
+      System.out.println("clients:            " + clientCount);
+      System.out.println("writes:             " + writeCount);
+      System.out.println("write -> updated:   " + format(writeToUpdated));
+      System.out.println("write -> fan-out:   " + format(writeToFanout));
+      System.out.println("added delivered:    " + added + " of " + ((long) clientCount * writeCount));
+      System.out.println("fan-out throughput: "
+          + (fanoutNanos <= 0 ? 0 : (long) (added / (fanoutNanos / 1e9))) + " msgs/s");
+
+      for (Client client : clients) {
+        client.session.close();
+      }
+      writer.session.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  static String format(Histogram histogram) {
+    return "p50=" + histogram.getPercentile(0.5) + "us p90=" + histogram.getPercentile(0.9) + "us p99="
+        + histogram.getPercentile(0.99) + "us max=" + histogram.getMax() + "us (n=" + histogram.getCount() + ")";
+  }
+
+}
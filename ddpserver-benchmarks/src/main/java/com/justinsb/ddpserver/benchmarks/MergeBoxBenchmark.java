@@ -0,0 +1,114 @@
+package com.justinsb.ddpserver.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.JsonObject;
+import com.justinsb.ddpserver.DdpConnection;
+import com.justinsb.ddpserver.DdpMergeBox;
+import com.justinsb.ddpserver.DdpSession;
+import com.justinsb.ddpserver.Jsonable;
+import com.justinsb.ddpserver.triggeredpoll.SimpleDdpDataSource;
+
+/**
+ * {@link DdpMergeBox#replaceAll} against a connection that discards what it is sent.
+ *
+ * "unchanged" re-sends the same documents (the common case for a re-polled query); "changed" alternates between two
+ * versions of every document, so each call sends a changed message per document; "subscribe" sends the documents to
+ * a new subscription and then unsubscribes.
+ *
+ * Run with: java -jar target/benchmarks.jar MergeBoxBenchmark
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeBoxBenchmark {
+
+  @Param({ "100", "10000" })
+  public int documentCount;
+
+  DdpSession session;
+  DdpMergeBox mergeBox;
+
+  List<Entry<String, Jsonable>> versionA;
+  List<Entry<String, Jsonable>> versionB;
+  boolean flip;
+
+  static class NullConnection implements DdpConnection {
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public void sendMessage(String json) throws IOException {
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    session = new DdpSession(new SimpleDdpDataSource(), new NullConnection());
+    mergeBox = session.getMergeBox();
+
+    versionA = buildDocuments("a");
+    versionB = buildDocuments("b");
+
+    mergeBox.replaceAll("sub1", "items", versionA);
+  }
+
+  @TearDown
+  public void tearDown() {
+    mergeBox.disconnected();
+  }
+
+  List<Entry<String, Jsonable>> buildDocuments(String version) {
+    List<Entry<String, Jsonable>> documents = Lists.newArrayList();
+    for (int i = 0; i < documentCount; i++) {
+      JsonObject json = new JsonObject();
+      json.addProperty("name", "Item " + i);
+      json.addProperty("listId", "list" + (i % 10));
+      json.addProperty("checked", false);
+      json.addProperty("version", version);
+      documents.add(Maps.immutableEntry("id" + i, Jsonable.fromJson(json)));
+    }
+    return documents;
+  }
+
+  @Benchmark
+  public void unchanged() throws IOException {
+    mergeBox.replaceAll("sub1", "items", flip ? versionB : versionA);
+  }
+
+  @Benchmark
+  public void changed() throws IOException {
+    flip = !flip;
+    mergeBox.replaceAll("sub1", "items", flip ? versionB : versionA);
+  }
+
+  @Benchmark
+  public void subscribe() throws IOException {
+    mergeBox.replaceAll("sub2", "items", flip ? versionB : versionA);
+    mergeBox.unsubscribe("sub2", "items");
+  }
+
+}
@@ -0,0 +1,55 @@
+package com.justinsb.ddpserver.benchmarks;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.justinsb.ddpserver.triggeredpoll.InvalidationSystem;
+import com.justinsb.ddpserver.triggeredpoll.WatchableValue;
+
+/**
+ * The original, single-monitor invalidation system; kept as a baseline for the benchmarks
+ *
+ */
+public class SynchronizedInvalidationSystem implements InvalidationSystem {
+
+  final Map<String, WatchableValue> positions = Maps.newHashMap();
+
+  WatchableValue getWatchable(String key) {
+    synchronized (positions) {
+      WatchableValue position = positions.get(key);
+      if (position == null) {
+        position = new WatchableValue(0);
+        positions.put(key, position);
+      }
+      return position;
+    }
+  }
+
+  @Override
+  public ListenableFuture<Long> waitForPosition(String key, long minPosition) {
+    synchronized (this) {
+      WatchableValue position = getWatchable(key);
+      return position.waitForMin(minPosition);
+    }
+  }
+
+  @Override
+  public long notifyChange(String key) {
+    synchronized (this) {
+      WatchableValue position = getWatchable(key);
+      long next = position.getValue() + 1;
+      position.setValue(next);
+      return next;
+    }
+  }
+
+  @Override
+  public long getPosition(String key) {
+    synchronized (this) {
+      WatchableValue position = getWatchable(key);
+      return position.getValue();
+    }
+  }
+
+}
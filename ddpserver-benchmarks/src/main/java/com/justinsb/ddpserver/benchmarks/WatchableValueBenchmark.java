@@ -0,0 +1,84 @@
+package com.justinsb.ddpserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.justinsb.ddpserver.triggeredpoll.WatchableValue;
+
+/**
+ * Single-threaded costs of {@link WatchableValue}: setting a value with a number of watchers waiting (which all fire),
+ * and with many watchers waiting further ahead (none of which fire).
+ *
+ * Run with: java -jar target/benchmarks.jar WatchableValueBenchmark
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WatchableValueBenchmark {
+
+  @Param({ "0", "1", "100" })
+  public int watchers;
+
+  WatchableValue value;
+
+  /**
+   * Watches that never fire, so the heap stays this big
+   */
+  static final int PARKED_WATCHERS = 10000;
+
+  WatchableValue parked;
+
+  @Setup
+  public void setup() {
+    value = new WatchableValue(0);
+
+    parked = new WatchableValue(0);
+    for (int i = 0; i < PARKED_WATCHERS; i++) {
+      parked.waitForMin(Long.MAX_VALUE - i);
+    }
+  }
+
+  @Benchmark
+  public void watchAndSet(Blackhole blackhole) {
+    long next = value.getValue() + 1;
+    for (int i = 0; i < watchers; i++) {
+      blackhole.consume(value.waitForMin(next));
+    }
+    value.setValue(next);
+  }
+
+  @Benchmark
+  public void setWithParkedWatchers(Blackhole blackhole) {
+    long next = parked.getValue() + 1;
+    for (int i = 0; i < watchers; i++) {
+      blackhole.consume(parked.waitForMin(next));
+    }
+    parked.setValue(next);
+  }
+
+  /**
+   * A watch on a position that has already been reached
+   */
+  @Benchmark
+  public ListenableFuture<Long> waitForReached() {
+    return value.waitForMin(value.getValue());
+  }
+
+}
@@ -0,0 +1,206 @@
+package com.justinsb.ddpserver.benchmarks;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+import org.eclipse.jetty.io.NetworkTrafficListener;
+import org.eclipse.jetty.server.NetworkTrafficServerConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.justinsb.ddpserver.DdpEndpoints;
+import com.justinsb.ddpserver.examples.inmem.InMemoryStorage;
+import com.justinsb.ddpserver.triggeredpoll.InMemoryInvalidationSystem;
+import com.justinsb.ddpserver.triggeredpoll.TriggerDdpDataSource;
+
+/**
+ * Measures what an initial subscription costs on the wire: inserts documents over a websocket, then subscribes to them
+ * all, and counts the frames the client receives and the socket writes (and bytes) the server makes until "ready" has
+ * arrived and the connection has gone quiet.
+ *
+ * The server's writes are counted by Jetty's network traffic listener, so they are writes to the socket, not calls
+ * into the transport.
+ *
+ * Run with: java -cp target/benchmarks.jar com.justinsb.ddpserver.benchmarks.WireWritesHarness --documents 2500
+ *
+ */
+public class WireWritesHarness {
+
+  static final String COLLECTION = "items";
+
+  int documentCount = 2500;
+  long quietMillis = 500;
+  long timeoutSeconds = 60;
+
+  final AtomicLong socketWrites = new AtomicLong();
+  final AtomicLong socketBytes = new AtomicLong();
+
+  final AtomicLong framesReceived = new AtomicLong();
+  final AtomicLong addedReceived = new AtomicLong();
+  final AtomicLong lastFrameNanos = new AtomicLong();
+
+  CountDownLatch insertedLatch;
+  CountDownLatch readyLatch;
+
+  public static void main(String[] args) throws Exception {
+    WireWritesHarness harness = new WireWritesHarness();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--documents")) {
+        harness.documentCount = Integer.parseInt(args[++i]);
+      } else if (arg.equals("--timeout")) {
+        harness.timeoutSeconds = Long.parseLong(args[++i]);
+      } else {
+        throw new IllegalArgumentException("Unknown argument: " + arg);
+      }
+    }
+
+    harness.run();
+    System.exit(0);
+  }
+
+  class Client extends Endpoint {
+    Session session;
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+      this.session = session;
+      session.addMessageHandler(new MessageHandler.Whole<String>() {
+        @Override
+        public void onMessage(String message) {
+          framesReceived.incrementAndGet();
+          lastFrameNanos.set(System.nanoTime());
+
+          JsonObject json = (JsonObject) new JsonParser().parse(message);
+          String msg = json.has("msg") ? json.get("msg").getAsString() : "";
+          if (msg.equals("result")) {
+            insertedLatch.countDown();
+          } else if (msg.equals("added")) {
+            addedReceived.incrementAndGet();
+          } else if (msg.equals("ready")) {
+            readyLatch.countDown();
+          }
+        }
+      });
+    }
+
+    void send(JsonObject message) throws IOException {
+      session.getBasicRemote().sendText(message.toString());
+    }
+  }
+
+  void run() throws Exception {
+    TriggerDdpDataSource dataSource = new TriggerDdpDataSource(new InMemoryStorage(),
+        new InMemoryInvalidationSystem());
+
+    Server server = new Server();
+    NetworkTrafficServerConnector connector = new NetworkTrafficServerConnector(server);
+    connector.setPort(0);
+    connector.addNetworkTrafficListener(new NetworkTrafficListener.Adapter() {
+      @Override
+      public void outgoing(Socket socket, ByteBuffer bytes) {
+        socketWrites.incrementAndGet();
+        socketBytes.addAndGet(bytes.remaining());
+      }
+    });
+    server.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+    context.setContextPath("/");
+    server.setHandler(context);
+    DdpEndpoints.register(context, dataSource);
+    server.start();
+
+    try {
+      URI uri = URI.create("ws://127.0.0.1:" + connector.getLocalPort() + "/websocket");
+      WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+      Client client = new Client();
+      container.connectToServer(client, ClientEndpointConfig.Builder.create().build(), uri);
+
+      JsonObject connect = new JsonObject();
+      connect.addProperty("msg", "connect");
+      connect.addProperty("version", "1");
+      JsonArray support = new JsonArray();
+      support.add(new JsonPrimitive("1"));
+      connect.add("support", support);
+      client.send(connect);
+
+      insertedLatch = new CountDownLatch(documentCount);
+      readyLatch = new CountDownLatch(1);
+      for (int i = 0; i < documentCount; i++) {
+        JsonObject fields = new JsonObject();
+        fields.addProperty("_id", "d" + i);
+        fields.addProperty("n", i);
+        JsonArray params = new JsonArray();
+        params.add(fields);
+
+        JsonObject method = new JsonObject();
+        method.addProperty("msg", "method");
+        method.addProperty("method", "/" + COLLECTION + "/insert");
+        method.add("params", params);
+        method.addProperty("id", "m" + i);
+        client.send(method);
+      }
+      if (!insertedLatch.await(timeoutSeconds, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Timed out waiting for inserts; " + insertedLatch.getCount() + " outstanding");
+      }
+      waitForQuiet();
+
+      long writesBefore = socketWrites.get();
+      long bytesBefore = socketBytes.get();
+      long framesBefore = framesReceived.get();
+
+      JsonObject sub = new JsonObject();
+      sub.addProperty("msg", "sub");
+      sub.addProperty("id", "s1");
+      sub.addProperty("name", COLLECTION);
+      sub.add("params", new JsonArray());
+      client.send(sub);
+
+      if (!readyLatch.await(timeoutSeconds, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Timed out waiting for the subscription");
+      }
+      waitForQuiet();
+
+      System.out.println("documents:        " + documentCount);
+      System.out.println("added received:   " + addedReceived.get());
+      System.out.println("frames received:  " + (framesReceived.get() - framesBefore));
+      System.out.println("socket writes:    " + (socketWrites.get() - writesBefore));
+      System.out.println("bytes written:    " + (socketBytes.get() - bytesBefore));
+
+      client.session.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Waits until no frame has arrived for the quiet time (e.g. pings aside, the server has finished sending)
+   */
+  void waitForQuiet() throws InterruptedException {
+    while (true) {
+      long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFrameNanos.get());
+      if (idleMillis >= quietMillis) {
+        return;
+      }
+      Thread.sleep(quietMillis - idleMillis);
+    }
+  }
+
+}
@@ -0,0 +1,67 @@
+package com.justinsb.ddpserver;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonElement;
+
+/**
+ * An immutable {@link Jsonable} that computes its serialized form & content hash once, on first use.
+ * 
+ * The wrapped element must not be modified after construction.
+ *
+ */
+public final class CachedJsonable implements Jsonable {
+  final JsonElement jsonElement;
+
+  private volatile String json;
+  private volatile byte[] utf8;
+  private volatile long contentHash;
+  private volatile boolean hashed;
+
+  public CachedJsonable(JsonElement jsonElement) {
+    this.jsonElement = jsonElement;
+  }
+
+  @Override
+  public JsonElement toJsonElement() {
+    return jsonElement;
+  }
+
+  @Override
+  public String toJson() {
+    String json = this.json;
+    if (json == null) {
+      json = jsonElement.toString();
+      this.json = json;
+    }
+    return json;
+  }
+
+  /**
+   * Callers must not modify the returned array.
+   */
+  @Override
+  public byte[] toUtf8() {
+    byte[] utf8 = this.utf8;
+    if (utf8 == null) {
+      utf8 = toJson().getBytes(StandardCharsets.UTF_8);
+      this.utf8 = utf8;
+    }
+    return utf8;
+  }
+
+  @Override
+  public long contentHash() {
+    if (!hashed) {
+      contentHash = Jsonable.hash(toUtf8());
+      hashed = true;
+    }
+    return contentHash;
+  }
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+
+}
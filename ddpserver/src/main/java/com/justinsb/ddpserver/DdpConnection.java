@@ -1,6 +1,7 @@
 package com.justinsb.ddpserver;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * An abstract DDP connection (SockJS or WebSockets)
@@ -12,4 +13,31 @@ public interface DdpConnection {
 
   void sendMessage(String json) throws IOException;
 
+  /**
+   * Sends several messages at once; implementations should get them to the socket in as few writes as they can
+   * (each message is still its own websocket frame, or SockJS message, as DDP clients expect)
+   */
+  default void sendMessages(List<String> messages) throws IOException {
+    for (String json : messages) {
+      sendMessage(json);
+    }
+  }
+
+  interface SendCallback {
+    /**
+     * Called once the messages have been written; error is null on success
+     */
+    void completed(Throwable error);
+  }
+
+  /**
+   * Sends several messages, calling back when they have been written.
+   * 
+   * Transports that can write without blocking should override this; the default writes synchronously.
+   */
+  default void sendMessages(List<String> messages, SendCallback callback) throws IOException {
+    sendMessages(messages);
+    callback.completed(null);
+  }
+
 }
@@ -1,6 +1,9 @@
 package com.justinsb.ddpserver;
 
+import java.util.concurrent.Executor;
+
 import com.google.gson.JsonArray;
+import com.justinsb.ddpserver.metrics.DdpMetrics;
 
 /**
  * The logic implementation that the DDP connection exposes
@@ -12,4 +15,27 @@ public interface DdpDataSource {
 
   DdpMethodResult executeMethod(DdpSession session, String methodId, String method, JsonArray params) throws Exception;
 
+  /**
+   * Where the session handles its inbound messages; must run tasks one at a time, in order.
+   * 
+   * By default (null) messages are handled directly on the connection's I/O thread.
+   */
+  default Executor getSessionExecutor(DdpSession session) {
+    return null;
+  }
+
+  /**
+   * Where the data source's sessions (and the data source itself) record their metrics
+   */
+  default DdpMetrics getMetrics() {
+    return DdpMetrics.DEFAULT;
+  }
+
+  /**
+   * The store the sessions' merge-boxes share document versions through
+   */
+  default DdpDocumentStore getDocumentStore() {
+    return DdpDocumentStore.DEFAULT;
+  }
+
 }
@@ -0,0 +1,225 @@
+package com.justinsb.ddpserver;
+
+import java.lang.ref.WeakReference;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Utf8;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * An immutable version of a document, shared between all the merge-boxes that have sent it to a client.
+ * 
+ * Instances are owned by a {@link DdpDocumentStore}, and are reference-counted by the sessions that hold them.
+ * 
+ * The DDP messages for a version are encoded once and cached, so fanning a change out to many sessions sends the
+ * same string to each connection.
+ *
+ */
+public class DdpDocument {
+  /**
+   * The bytes of an added message other than the collection name, id & fields
+   */
+  static final int ADDED_MESSAGE_OVERHEAD = "{\"msg\":\"added\",\"collection\":\"\",\"id\":\"\",\"fields\":}".length();
+
+  final String collectionName;
+  final String id;
+
+  /**
+   * The projection the version is of, as a key; null for the whole document
+   */
+  final String view;
+
+  final long version;
+  final long contentHash;
+
+  /**
+   * The value we were built from; lets us skip comparisons when storage hands us the same object again
+   */
+  final Jsonable source;
+
+  /**
+   * The parsed fields; only needed to diff versions, so we don't parse documents that are only ever added
+   */
+  private volatile JsonObject fields;
+
+  final AtomicInteger refCount = new AtomicInteger();
+
+  private volatile String addedMessage;
+  private volatile String removedMessage;
+  private volatile ChangedMessage changedMessage;
+
+  /**
+   * The changed message from a particular previous version; most sessions move from the same previous version.
+   * 
+   * We only hold the previous version weakly, or every version a document has had would stay reachable through the
+   * chain of cached messages.
+   */
+  static class ChangedMessage {
+    final WeakReference<DdpDocument> previous;
+    final String json;
+
+    ChangedMessage(DdpDocument previous, String json) {
+      this.previous = new WeakReference<DdpDocument>(previous);
+      this.json = json;
+    }
+
+    boolean isFrom(DdpDocument document) {
+      return previous.get() == document;
+    }
+  }
+
+  DdpDocument(String collectionName, String id, String view, long version, Jsonable source, long contentHash) {
+    this.collectionName = collectionName;
+    this.id = id;
+    this.view = view;
+    this.version = version;
+    this.source = source;
+    this.contentHash = contentHash;
+  }
+
+  public String getCollectionName() {
+    return collectionName;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * A hash of the serialized fields; see {@link Jsonable#contentHash()}
+   */
+  public long getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * The fields of the document. Callers must not modify the returned object.
+   */
+  public JsonObject getFields() {
+    JsonObject fields = this.fields;
+    if (fields == null) {
+      fields = source.toJsonElement().getAsJsonObject();
+      this.fields = fields;
+    }
+    return fields;
+  }
+
+  public String getAddedMessage() {
+    String json = addedMessage;
+    if (json == null) {
+      // The source usually has its serialized form cached, so we splice it in rather than re-walking the fields
+      json = "{\"msg\":\"added\",\"collection\":" + new JsonPrimitive(collectionName) + ",\"id\":"
+          + new JsonPrimitive(id) + ",\"fields\":" + source.toJson() + "}";
+      addedMessage = json;
+    }
+    return json;
+  }
+
+  /**
+   * The size of the added message in UTF-8 bytes; estimated from the fields if we haven't encoded it, so we don't
+   * encode a version just to size it
+   */
+  public int estimateAddedBytes() {
+    String json = addedMessage;
+    if (json != null) {
+      return Utf8.encodedLength(json);
+    }
+    return ADDED_MESSAGE_OVERHEAD + Utf8.encodedLength(collectionName) + Utf8.encodedLength(id) + source.utf8Length();
+  }
+
+  /**
+   * The size of the changed message from the previous version in UTF-8 bytes, if we have encoded it; otherwise we
+   * estimate it as the size of the added message, which it can't much exceed
+   */
+  public int estimateChangedBytes(DdpDocument previous) {
+    ChangedMessage cached = changedMessage;
+    if (cached != null && cached.isFrom(previous)) {
+      return cached.json != null ? Utf8.encodedLength(cached.json) : 0;
+    }
+    return estimateAddedBytes();
+  }
+
+  public String getRemovedMessage() {
+    String json = removedMessage;
+    if (json == null) {
+      JsonObject msg = new JsonObject();
+      msg.addProperty("msg", "removed");
+      msg.addProperty("collection", collectionName);
+      msg.addProperty("id", id);
+      json = msg.toString();
+      removedMessage = json;
+    }
+    return json;
+  }
+
+  /**
+   * Returns the changed message that moves a client from the previous version to this one, or null if the fields are
+   * the same.
+   */
+  public String getChangedMessage(DdpDocument previous) {
+    ChangedMessage cached = changedMessage;
+    if (cached != null && cached.isFrom(previous)) {
+      return cached.json;
+    }
+
+    JsonObject msg = buildChanged(previous.getFields());
+    String json = msg != null ? msg.toString() : null;
+    changedMessage = new ChangedMessage(previous, json);
+    return json;
+  }
+
+  private JsonObject buildChanged(JsonObject sent) {
+    JsonObject fields = getFields();
+    JsonObject changed = null;
+    for (Entry<String, JsonElement> field : fields.entrySet()) {
+      if (!Objects.equal(sent.get(field.getKey()), field.getValue())) {
+        if (changed == null) {
+          changed = new JsonObject();
+        }
+        changed.add(field.getKey(), field.getValue());
+      }
+    }
+
+    JsonArray cleared = null;
+    for (Entry<String, JsonElement> field : sent.entrySet()) {
+      if (!fields.has(field.getKey())) {
+        if (cleared == null) {
+          cleared = new JsonArray();
+        }
+        cleared.add(new JsonPrimitive(field.getKey()));
+      }
+    }
+
+    if (changed == null && cleared == null) {
+      return null;
+    }
+
+    JsonObject msg = new JsonObject();
+    msg.addProperty("msg", "changed");
+    msg.addProperty("collection", collectionName);
+    msg.addProperty("id", id);
+    if (changed != null) {
+      msg.add("fields", changed);
+    }
+    if (cleared != null) {
+      msg.add("cleared", cleared);
+    }
+    return msg;
+  }
+
+  @Override
+  public String toString() {
+    return "DdpDocument [collectionName=" + collectionName + ", id=" + id + ", version=" + version + ", refCount="
+        + refCount + "]";
+  }
+
+}
@@ -0,0 +1,110 @@
+package com.justinsb.ddpserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Server-wide store of document versions, shared by all merge-boxes.
+ * 
+ * We hold one immutable {@link DdpDocument} per document version, reference-counted by the sessions that have it, so
+ * memory grows with the number of distinct documents rather than sessions x documents.
+ * 
+ * Versions are kept by the projection they are of (the view), so sessions sending different fields of a document each
+ * share the version for their fields, rather than replacing each other's.
+ *
+ */
+public class DdpDocumentStore {
+
+  public static final DdpDocumentStore DEFAULT = new DdpDocumentStore();
+
+  final ConcurrentMap<String, Map<String, DdpDocument>> collections = Maps.newConcurrentMap();
+
+  final AtomicLong nextVersion = new AtomicLong();
+
+  private Map<String, DdpDocument> getCollection(String collectionName) {
+    Map<String, DdpDocument> documents = collections.get(collectionName);
+    if (documents == null) {
+      documents = Maps.newHashMap();
+      Map<String, DdpDocument> existing = collections.putIfAbsent(collectionName, documents);
+      if (existing != null) {
+        documents = existing;
+      }
+    }
+    return documents;
+  }
+
+  /**
+   * The key of a document's current version in its view
+   */
+  static String key(String id, String view) {
+    return view == null ? id : id + '\u0000' + view;
+  }
+
+  public DdpDocument acquire(String collectionName, String id, Jsonable value) {
+    return acquire(collectionName, id, null, value);
+  }
+
+  /**
+   * Returns the shared version of the document with the given value, taking a reference on it.
+   * 
+   * If the current version in the view has the same content, it is reused; otherwise a new version is created.
+   * 
+   * @param view
+   *          identifies the fields the value has (e.g. {@link Projection#getKey()}); null for the whole document
+   */
+  public DdpDocument acquire(String collectionName, String id, String view, Jsonable value) {
+    String key = key(id, view);
+    Map<String, DdpDocument> documents = getCollection(collectionName);
+    synchronized (documents) {
+      DdpDocument current = documents.get(key);
+      if (current != null && current.source == value) {
+        current.refCount.incrementAndGet();
+        return current;
+      }
+
+      long contentHash = value.contentHash();
+      if (current != null && current.contentHash == contentHash && current.source.contentEquals(value)) {
+        current.refCount.incrementAndGet();
+        return current;
+      }
+
+      DdpDocument document = new DdpDocument(collectionName, id, view, nextVersion.incrementAndGet(), value,
+          contentHash);
+      document.refCount.incrementAndGet();
+      documents.put(key, document);
+      return document;
+    }
+  }
+
+  /**
+   * Releases a reference taken by {@link #acquire}
+   */
+  public void release(DdpDocument document) {
+    if (document.refCount.decrementAndGet() != 0) {
+      return;
+    }
+
+    Map<String, DdpDocument> documents = getCollection(document.collectionName);
+    synchronized (documents) {
+      // Only remove if it is still the current version, and nobody re-acquired it
+      String key = key(document.id, document.view);
+      if (documents.get(key) == document && document.refCount.get() == 0) {
+        documents.remove(key);
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Map<String, DdpDocument> documents : collections.values()) {
+      synchronized (documents) {
+        size += documents.size();
+      }
+    }
+    return size;
+  }
+
+}
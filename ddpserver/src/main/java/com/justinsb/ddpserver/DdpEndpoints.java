@@ -11,6 +11,10 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.websocket.jsr356.server.deploy.WebSocketServerContainerInitializer;
 
+import com.justinsb.ddpserver.metrics.DdpMetrics;
+import com.justinsb.ddpserver.metrics.Gauge;
+import com.justinsb.ddpserver.metrics.DdpMetricsServlet;
+
 public class DdpEndpoints {
   public static void register(ServletContextHandler context, DdpDataSource ddpDataSource) throws Exception {
     // Add a CORS filter to allow (any) CORS request
@@ -21,6 +25,17 @@ public class DdpEndpoints {
     DdpSockJsServlet ddpServlet = new DdpSockJsServlet(ddpDataSource);
     context.addServlet(new ServletHolder(ddpServlet), "/sockjs/*");
 
+    // Server internals, as JSON; the same registry the data source & its sessions record to
+    DdpMetrics metrics = ddpDataSource.getMetrics();
+    final DdpDocumentStore documentStore = ddpDataSource.getDocumentStore();
+    metrics.registerGauge("sharedDocuments", new Gauge() {
+      @Override
+      public long getValue() {
+        return documentStore.size();
+      }
+    });
+    context.addServlet(new ServletHolder(new DdpMetricsServlet(metrics)), "/metrics");
+
     // Initialize javax.websocket layer
     ServerContainer wscontainer = WebSocketServerContainerInitializer.configureContext(context);
 
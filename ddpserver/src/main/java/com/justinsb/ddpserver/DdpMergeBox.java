@@ -1,35 +1,65 @@
 package com.justinsb.ddpserver;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import com.google.common.base.Objects;
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
 /**
  * Implements a merge-box, which optimizes delivery of items on subscriptions.
  * 
- * The current implementation is very simplistic, and resends objects unnecessarily.
+ * We remember the version of each document we last sent, so that "changed" messages only carry the fields that
+ * actually changed. The versions themselves live in a {@link DdpDocumentStore} shared by all sessions.
+ * 
+ * Several subscriptions can send the same document, each with its own projection; we remember what each has sent, and
+ * the client gets the union of their fields, a field going only when no subscription has it.
  *
  */
 public class DdpMergeBox {
   final DdpSession ddpSession;
+  final DdpDocumentStore documentStore;
 
-  public DdpMergeBox(DdpSession ddpSession) {
+  public DdpMergeBox(DdpSession ddpSession, DdpDocumentStore documentStore) {
     this.ddpSession = ddpSession;
+    this.documentStore = documentStore;
+  }
+
+  /**
+   * The projection of each subscription, as a key; subscriptions sending whole documents have none
+   */
+  final Map<String, String> subscriptionViews = Maps.newConcurrentMap();
+
+  /**
+   * What each subscription has of a document, and the version of the union we last sent to the client
+   */
+  static class DocumentView {
+    /**
+     * By subscription, in the order they first sent the document; where their fields overlap, the client gets the
+     * first one's value (as Meteor does)
+     */
+    final Map<String, Jsonable> sources = Maps.newLinkedHashMap();
+
+    /**
+     * The version we last sent; shared with other sessions
+     */
+    DdpDocument sent;
   }
 
   class ClientCollectionState {
     final String collectionName;
-    final Multiset<String> ids = HashMultiset.create();
+
+    final Map<String, DocumentView> documents = Maps.newHashMap();
 
     final HashMultimap<String, String> subscriptionObjects = HashMultimap.create();
 
@@ -44,39 +74,15 @@ public class DdpMergeBox {
         Set<String> newIds = Sets.newConcurrentHashSet();
 
         for (Entry<String, Jsonable> entry : objects) {
-          JsonObject msg = new JsonObject();
           String id = entry.getKey();
 
-          if (ids.contains(id)) {
-            // TODO: Check if actually changed?
-            msg.addProperty("msg", "changed");
-          } else {
-            msg.addProperty("msg", "added");
-          }
-          msg.addProperty("collection", collectionName);
-          msg.addProperty("id", id);
-          msg.add("fields", entry.getValue().toJsonElement());
-
-          ddpSession.sendMessage(msg);
-
-          if (!oldIds.contains(id)) {
-            ids.add(id);
-          }
+          sendDocument(subscriptionId, id, entry.getValue());
           newIds.add(id);
         }
 
         for (String id : oldIds) {
           if (!newIds.contains(id)) {
-            int preCount = ids.remove(id, 1);
-            if (preCount <= 1) {
-              assert preCount == 1;
-
-              JsonObject msg = new JsonObject();
-              msg.addProperty("msg", "removed");
-              msg.addProperty("collection", collectionName);
-              msg.addProperty("id", id);
-              ddpSession.sendMessage(msg);
-            }
+            removeSource(subscriptionId, id);
           }
         }
 
@@ -84,33 +90,173 @@ public class DdpMergeBox {
       }
     }
 
+    /**
+     * Applies incremental changes from a storage change feed to the subscription
+     */
+    public void applyChanges(String subscriptionId, List<StorageChange> changes) throws IOException {
+      synchronized (this) {
+        for (StorageChange change : changes) {
+          String id = change.getId();
+          switch (change.getType()) {
+          case ADDED:
+          case CHANGED:
+            sendDocument(subscriptionId, id, change.getDocument());
+            subscriptionObjects.put(subscriptionId, id);
+            break;
+
+          case REMOVED:
+            if (subscriptionObjects.remove(subscriptionId, id)) {
+              removeSource(subscriptionId, id);
+            }
+            break;
+
+          default:
+            throw new IllegalStateException();
+          }
+        }
+      }
+    }
+
+    /**
+     * Records the subscription's value for the document, and brings the client up to date
+     */
+    private void sendDocument(String subscriptionId, String id, Jsonable value) throws IOException {
+      DocumentView view = documents.get(id);
+      if (view == null) {
+        view = new DocumentView();
+        documents.put(id, view);
+      }
+      Jsonable previous = view.sources.put(subscriptionId, value);
+      if (previous != null && previous.contentEquals(value)) {
+        // Fast-path: storage gave us the same object, or one with the same content
+        return;
+      }
+      update(id, view);
+    }
+
+    private void removeSource(String subscriptionId, String id) throws IOException {
+      DocumentView view = documents.get(id);
+      view.sources.remove(subscriptionId);
+      update(id, view);
+    }
+
+    /**
+     * Sends the added, changed or removed message (if any) needed to bring the client up to date with the view
+     */
+    private void update(String id, DocumentView view) throws IOException {
+      DdpDocument sent = view.sent;
+      if (view.sources.isEmpty()) {
+        documents.remove(id);
+        ddpSession.sendDocument(sent, null);
+        documentStore.release(sent);
+        return;
+      }
+
+      Iterator<Entry<String, Jsonable>> sources = view.sources.entrySet().iterator();
+      Entry<String, Jsonable> first = sources.next();
+      String viewKey = subscriptionViews.get(first.getKey());
+      Jsonable value = first.getValue();
+      boolean sameView = true;
+      while (sources.hasNext()) {
+        if (!Objects.equal(viewKey, subscriptionViews.get(sources.next().getKey()))) {
+          sameView = false;
+          break;
+        }
+      }
+      if (!sameView) {
+        // Subscriptions with different projections; the client gets the union of their fields
+        StringBuilder key = new StringBuilder();
+        for (String subscriptionId : view.sources.keySet()) {
+          String subscriptionView = subscriptionViews.get(subscriptionId);
+          key.append(subscriptionView != null ? subscriptionView : "*").append('|');
+        }
+        viewKey = key.toString();
+        value = union(view.sources.values());
+      }
+
+      if (sent != null && sent.source.contentEquals(value)) {
+        return;
+      }
+
+      DdpDocument document = documentStore.acquire(collectionName, id, viewKey, value);
+      if (sent != document) {
+        ddpSession.sendDocument(sent, document);
+      }
+      view.sent = document;
+      if (sent != null) {
+        documentStore.release(sent);
+      }
+    }
+
     public void unsubscribe(String subscriptionId) throws IOException {
       synchronized (this) {
         Set<String> subscriptionIds = subscriptionObjects.removeAll(subscriptionId);
         for (String id : subscriptionIds) {
-          int preCount = ids.remove(id, 1);
-          if (preCount <= 1) {
-            assert preCount == 1;
-
-            JsonObject msg = new JsonObject();
-            msg.addProperty("msg", "removed");
-            msg.addProperty("collection", collectionName);
-            msg.addProperty("id", id);
-            ddpSession.sendMessage(msg);
-          }
+          removeSource(subscriptionId, id);
+        }
+      }
+    }
+
+    public int getDocumentCount() {
+      synchronized (this) {
+        return documents.size();
+      }
+    }
+
+    /**
+     * Releases our references to shared documents, without sending anything to the client
+     */
+    public void releaseAll() {
+      synchronized (this) {
+        for (DocumentView view : documents.values()) {
+          documentStore.release(view.sent);
         }
+        documents.clear();
+        subscriptionObjects.clear();
       }
     }
 
   }
 
+  /**
+   * The fields of all the values; where they overlap, the first value's
+   */
+  static Jsonable union(Iterable<Jsonable> values) {
+    JsonObject union = new JsonObject();
+    for (Jsonable value : values) {
+      for (Entry<String, JsonElement> field : value.toJsonElement().getAsJsonObject().entrySet()) {
+        if (!union.has(field.getKey())) {
+          union.add(field.getKey(), field.getValue());
+        }
+      }
+    }
+    return Jsonable.fromJson(union);
+  }
+
   final Map<String, ClientCollectionState> clientCollectionStates = Maps.newHashMap();
 
   public void replaceAll(String subscriptionId, String collectionName, Iterable<Entry<String, Jsonable>> objects)
       throws IOException {
     ClientCollectionState clientCollectionState = getClientCollectionState(collectionName);
 
-    clientCollectionState.replaceAll(subscriptionId, objects);
+    ddpSession.beginBatch();
+    try {
+      clientCollectionState.replaceAll(subscriptionId, objects);
+    } finally {
+      ddpSession.endBatch();
+    }
+  }
+
+  public void applyChanges(String subscriptionId, String collectionName, List<StorageChange> changes)
+      throws IOException {
+    ClientCollectionState clientCollectionState = getClientCollectionState(collectionName);
+
+    ddpSession.beginBatch();
+    try {
+      clientCollectionState.applyChanges(subscriptionId, changes);
+    } finally {
+      ddpSession.endBatch();
+    }
   }
 
   private ClientCollectionState getClientCollectionState(String collectionName) {
@@ -133,23 +279,58 @@ public class DdpMergeBox {
     ddpSession.sendMessage(ready);
   }
 
+  /**
+   * Records the fields the subscription sends (null for whole documents), so we can merge its documents with other
+   * subscriptions' and share versions with other sessions sending the same fields
+   */
+  public void setProjection(String subscriptionId, Projection projection) {
+    if (projection != null) {
+      subscriptionViews.put(subscriptionId, projection.getKey());
+    } else {
+      subscriptionViews.remove(subscriptionId);
+    }
+  }
+
   public void unsubscribe(String subscriptionId, String collectionName) throws IOException {
     ClientCollectionState clientCollectionState = getClientCollectionState(collectionName);
 
-    clientCollectionState.unsubscribe(subscriptionId);
+    ddpSession.beginBatch();
+    try {
+      clientCollectionState.unsubscribe(subscriptionId);
+      subscriptionViews.remove(subscriptionId);
+
+      {
+        JsonObject nosub = new JsonObject();
+        nosub.addProperty("msg", "nosub");
+        nosub.addProperty("id", subscriptionId);
+        ddpSession.sendMessage(nosub);
+      }
+    } finally {
+      ddpSession.endBatch();
+    }
+  }
 
-    {
-      JsonObject nosub = new JsonObject();
-      nosub.addProperty("msg", "nosub");
-      nosub.addProperty("id", subscriptionId);
-      ddpSession.sendMessage(nosub);
+  /**
+   * The number of documents the client has
+   */
+  public int getDocumentCount() {
+    int count = 0;
+    synchronized (clientCollectionStates) {
+      for (ClientCollectionState clientCollectionState : clientCollectionStates.values()) {
+        count += clientCollectionState.getDocumentCount();
+      }
     }
+    return count;
   }
 
   public void disconnected() {
     synchronized (clientCollectionStates) {
+      for (ClientCollectionState clientCollectionState : clientCollectionStates.values()) {
+        clientCollectionState.releaseAll();
+      }
       clientCollectionStates.clear();
     }
+    subscriptionViews.clear();
   }
 
 }
@@ -0,0 +1,143 @@
+package com.justinsb.ddpserver;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * An inbound DDP message, decoded with a streaming reader.
+ *
+ * We only pull out the fields we dispatch on (msg, id, name & method); everything else is skipped without building a
+ * tree. The params are parsed in the same pass for subscriptions & methods, which always need them; otherwise they are
+ * skipped, and parsed when (and if) someone asks for them.
+ *
+ */
+public class DdpMessage {
+  final String json;
+
+  String msg;
+  String id;
+  String name;
+  String method;
+  boolean hasParams;
+
+  JsonArray params;
+
+  private DdpMessage(String json) {
+    this.json = json;
+  }
+
+  public static DdpMessage parse(String json) {
+    DdpMessage message = new DdpMessage(json);
+    try {
+      JsonReader reader = new JsonReader(new StringReader(json));
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String field = reader.nextName();
+        if (field.equals("msg")) {
+          message.msg = nextString(reader);
+        } else if (field.equals("id")) {
+          message.id = nextString(reader);
+        } else if (field.equals("name")) {
+          message.name = nextString(reader);
+        } else if (field.equals("method")) {
+          message.method = nextString(reader);
+        } else if (field.equals("params")) {
+          message.hasParams = true;
+          if (message.needsParams()) {
+            // We know we'll need them; a second pass would cost more than parsing them now
+            message.params = toArray(new JsonParser().parse(reader));
+          } else {
+            reader.skipValue();
+          }
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IOException | IllegalStateException e) {
+      throw new JsonParseException("Error parsing message", e);
+    }
+
+    if (message.msg == null) {
+      throw new IllegalArgumentException("Message did not have msg field");
+    }
+    return message;
+  }
+
+  /**
+   * Subscriptions & methods always use their params (at least when they arrive after msg, as they do from Meteor)
+   */
+  private boolean needsParams() {
+    return msg != null && (msg.equals("sub") || msg.equals("method"));
+  }
+
+  private static JsonArray toArray(JsonElement params) {
+    if (!params.isJsonArray()) {
+      throw new IllegalArgumentException("params was not an array");
+    }
+    return params.getAsJsonArray();
+  }
+
+  private static String nextString(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+
+  public String getMsg() {
+    return msg;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * The params array, parsed on first use; an empty array if the message had none
+   */
+  public JsonArray getParams() {
+    if (params == null) {
+      params = hasParams ? parseParams() : new JsonArray();
+    }
+    return params;
+  }
+
+  private JsonArray parseParams() {
+    try {
+      JsonReader reader = new JsonReader(new StringReader(json));
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (reader.nextName().equals("params")) {
+          return toArray(new JsonParser().parse(reader));
+        }
+        reader.skipValue();
+      }
+    } catch (IOException e) {
+      throw new JsonParseException("Error parsing params", e);
+    }
+    throw new IllegalStateException();
+  }
+
+  @Override
+  public String toString() {
+    return json;
+  }
+
+}
@@ -17,6 +17,13 @@ public class DdpMethodResult {
     return new DdpMethodResult(result, Futures.immediateFuture(true));
   }
 
+  /**
+   * A result whose writes are not yet visible to all subscriptions; "updated" is sent when complete is done
+   */
+  public static DdpMethodResult completeWhen(JsonElement result, ListenableFuture<Boolean> complete) {
+    return new DdpMethodResult(result, complete);
+  }
+
   public JsonElement getResult() {
     return result;
   }
@@ -0,0 +1,386 @@
+package com.justinsb.ddpserver;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Utf8;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.justinsb.ddpserver.metrics.DdpMetrics;
+import com.justinsb.ddpserver.triggeredpoll.DdpExecutors;
+
+/**
+ * The messages waiting to be written to a session's connection.
+ *
+ * Messages sent inside a batch (e.g. a subscription's documents) are held until the outermost batch ends, and then
+ * written to the connection together, so the transport can put them in as few frames as it can. Messages sent outside
+ * a batch are written after the linger time, along with anything else sent in the meantime; with no linger they are
+ * written immediately.
+ *
+ * We have at most one write in flight; whatever is sent meanwhile waits for it. While a document is waiting we only
+ * keep the versions it is moving between, so a client that falls behind gets the latest state rather than every
+ * intermediate one. If the client falls too far behind (too many bytes waiting, or a write outstanding for too long)
+ * we disconnect it.
+ *
+ */
+public class DdpOutboundQueue {
+
+  private static final Logger log = LoggerFactory.getLogger(DdpOutboundQueue.class);
+
+  /**
+   * Very large batches are written in pieces, so we don't build huge frames
+   */
+  static final int MAX_BATCH_MESSAGES = 1000;
+
+  static final long DEFAULT_MAX_BUFFER_BYTES = Long.getLong("ddp.outbound.maxBytes", 16 * 1024 * 1024);
+  static final long DEFAULT_MAX_LAG_MILLIS = Long.getLong("ddp.outbound.maxLagMillis", 60000);
+
+  /**
+   * A message waiting to be written; either an encoded message, or a document moving between two versions
+   */
+  static class Pending {
+    final String json;
+
+    DdpDocument from;
+    DdpDocument to;
+
+    int bytes;
+
+    Pending(String json) {
+      this.json = json;
+      this.bytes = Utf8.encodedLength(json);
+    }
+
+    Pending(DdpDocument from, DdpDocument to) {
+      this.json = null;
+      this.from = from;
+      this.to = to;
+      this.bytes = estimateBytes();
+    }
+
+    /**
+     * The UTF-8 size of the message we expect to send; we don't encode it here, as the document may move on again
+     * before it is written
+     */
+    int estimateBytes() {
+      if (to != null) {
+        if (from == null) {
+          return to.estimateAddedBytes();
+        }
+        return from == to ? 0 : to.estimateChangedBytes(from);
+      }
+      if (from != null) {
+        return Utf8.encodedLength(from.getRemovedMessage());
+      }
+      return 0;
+    }
+
+    /**
+     * The msg type of the encoded message
+     */
+    String getType() {
+      if (json != null) {
+        return DdpWireTrace.getMessageType(json);
+      }
+      if (from == null) {
+        return "added";
+      }
+      if (to == null) {
+        return "removed";
+      }
+      return "changed";
+    }
+
+    /**
+     * Returns null if there is nothing to send (e.g. a document was added and then removed)
+     */
+    String encode() {
+      if (json != null) {
+        return json;
+      }
+      if (from == null) {
+        return to == null ? null : to.getAddedMessage();
+      }
+      if (to == null) {
+        return from.getRemovedMessage();
+      }
+      if (from == to) {
+        return null;
+      }
+      return to.getChangedMessage(from);
+    }
+  }
+
+  final DdpSession session;
+  final DdpConnection connection;
+  final DdpMetrics metrics;
+
+  List<Pending> pending = Lists.newArrayList();
+
+  /**
+   * The waiting document messages, by collection & id
+   */
+  Map<String, Pending> pendingDocuments = Maps.newHashMap();
+  long pendingBytes;
+
+  int batchDepth;
+  boolean flushScheduled;
+  long lingerMillis;
+
+  boolean writing;
+  long writeStartedNanos;
+  boolean closed;
+
+  long maxBufferBytes = DEFAULT_MAX_BUFFER_BYTES;
+  long maxLagMillis = DEFAULT_MAX_LAG_MILLIS;
+
+  public DdpOutboundQueue(DdpSession session, DdpConnection connection) {
+    this.session = session;
+    this.connection = connection;
+    this.metrics = session.metrics;
+  }
+
+  public void setLingerMillis(long lingerMillis) {
+    this.lingerMillis = lingerMillis;
+  }
+
+  /**
+   * Disconnect the client if more than this many bytes are waiting to be written to it
+   */
+  public void setMaxBufferBytes(long maxBufferBytes) {
+    this.maxBufferBytes = maxBufferBytes;
+  }
+
+  /**
+   * Disconnect the client if a write to it has been outstanding for this long
+   */
+  public void setMaxLagMillis(long maxLagMillis) {
+    this.maxLagMillis = maxLagMillis;
+  }
+
+  public void send(String json) throws IOException {
+    enqueue(new Pending(json), null);
+  }
+
+  /**
+   * Sends the message(s) to move the client from one version of a document to another; either may be null
+   */
+  public void sendDocument(DdpDocument from, DdpDocument to) throws IOException {
+    DdpDocument document = to != null ? to : from;
+    String key = document.getCollectionName() + "/" + document.getId();
+
+    synchronized (this) {
+      Pending existing = pendingDocuments.get(key);
+      if (existing != null) {
+        // Not written yet; skip straight to the new version
+        existing.to = to;
+        pendingBytes -= existing.bytes;
+        existing.bytes = existing.estimateBytes();
+        pendingBytes += existing.bytes;
+        return;
+      }
+    }
+
+    enqueue(new Pending(from, to), key);
+  }
+
+  private void enqueue(Pending message, String documentKey) throws IOException {
+    boolean flush = false;
+    boolean schedule = false;
+    String tooSlow = null;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      pending.add(message);
+      if (documentKey != null) {
+        pendingDocuments.put(documentKey, message);
+      }
+      pendingBytes += message.bytes;
+
+      if (writing) {
+        tooSlow = checkLag();
+      } else if (pending.size() >= MAX_BATCH_MESSAGES) {
+        flush = true;
+      } else if (batchDepth == 0) {
+        if (lingerMillis <= 0) {
+          flush = true;
+        } else if (!flushScheduled) {
+          flushScheduled = true;
+          schedule = true;
+        }
+      }
+    }
+
+    if (tooSlow != null) {
+      log.warn("Disconnecting slow client: {}", tooSlow);
+      close();
+      session.unexpectedError(new IOException("Client too slow: " + tooSlow));
+    } else if (flush) {
+      flush();
+    } else if (schedule) {
+      DdpExecutors.TIMER.schedule(flushTask, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns why the client is too far behind, or null if it is keeping up
+   */
+  private String checkLag() {
+    if (pendingBytes > maxBufferBytes) {
+      return pendingBytes + " bytes waiting";
+    }
+    long lagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - writeStartedNanos);
+    if (lagMillis > maxLagMillis) {
+      return "write outstanding for " + lagMillis + "ms";
+    }
+    return null;
+  }
+
+  public void beginBatch() {
+    synchronized (this) {
+      batchDepth++;
+    }
+  }
+
+  public void endBatch() throws IOException {
+    boolean flush;
+    synchronized (this) {
+      batchDepth--;
+      flush = batchDepth == 0 && !pending.isEmpty();
+    }
+    if (flush) {
+      flush();
+    }
+  }
+
+  /**
+   * Called when the transport has finished with a write
+   */
+  class WriteCallback implements DdpConnection.SendCallback {
+    boolean done;
+    boolean async;
+
+    @Override
+    public void completed(Throwable error) {
+      boolean flush;
+      synchronized (DdpOutboundQueue.this) {
+        done = true;
+        writing = false;
+        flush = async && !pending.isEmpty();
+      }
+
+      if (error != null) {
+        session.unexpectedError(error);
+        return;
+      }
+
+      if (flush) {
+        try {
+          flush();
+        } catch (IOException e) {
+          session.unexpectedError(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes everything that is waiting, unless a write is already in flight (in which case it will be written when
+   * that completes)
+   */
+  public void flush() throws IOException {
+    while (true) {
+      List<Pending> batch;
+      synchronized (this) {
+        flushScheduled = false;
+        if (writing || closed || pending.isEmpty()) {
+          return;
+        }
+        batch = pending;
+        pending = Lists.newArrayList();
+        pendingDocuments = Maps.newHashMap();
+        pendingBytes = 0;
+        writing = true;
+        writeStartedNanos = System.nanoTime();
+      }
+
+      List<String> messages = Lists.newArrayListWithCapacity(batch.size());
+      long bytes = 0;
+      for (Pending message : batch) {
+        String json = message.encode();
+        if (json != null) {
+          messages.add(json);
+          metrics.messagesOut(message.getType()).increment();
+          bytes += Utf8.encodedLength(json);
+        }
+      }
+      metrics.bytesSent.add(bytes);
+
+      DdpWireTrace trace = session.trace;
+      if (trace.isTraced(session)) {
+        for (String json : messages) {
+          trace.sent(session, json);
+        }
+      }
+
+      WriteCallback callback = new WriteCallback();
+      if (messages.isEmpty()) {
+        callback.completed(null);
+      } else {
+        try {
+          connection.sendMessages(messages, callback);
+        } catch (IOException e) {
+          synchronized (this) {
+            writing = false;
+          }
+          throw e;
+        }
+      }
+
+      synchronized (this) {
+        if (!callback.done) {
+          // The callback will carry on when the write completes
+          callback.async = true;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops anything not yet written; the connection is gone
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      pending.clear();
+      pendingDocuments.clear();
+      pendingBytes = 0;
+    }
+  }
+
+  public long getPendingBytes() {
+    synchronized (this) {
+      return pendingBytes;
+    }
+  }
+
+  final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        flush();
+      } catch (IOException e) {
+        session.unexpectedError(e);
+      }
+    }
+  };
+
+}
@@ -6,4 +6,11 @@ public interface DdpPublish {
 
   DdpSubscription subscribe(DdpPublishContext context, String name, JsonArray params) throws Exception;
 
+  /**
+   * The fields of each document the publication sends, or null for all of them
+   */
+  default Projection getProjection() {
+    return null;
+  }
+
 }
@@ -6,9 +6,15 @@ public class DdpPublishContext {
   final String subscriptionId;
   final String collectionName;
   final DdpSession session;
+  final Projection projection;
 
   public DdpPublishContext(DdpSession session, String subscriptionId, String collectionName) {
+    this(session, subscriptionId, collectionName, null);
+  }
+
+  public DdpPublishContext(DdpSession session, String subscriptionId, String collectionName, Projection projection) {
     this.session = session;
+    this.projection = projection;
     this.mergeBox = session.mergeBox;
     this.subscriptionId = subscriptionId;
     this.collectionName = collectionName;
@@ -30,4 +36,11 @@ public class DdpPublishContext {
     return session;
   }
 
+  /**
+   * The fields of each document to send, or null for all of them
+   */
+  public Projection getProjection() {
+    return projection;
+  }
+
 }
@@ -1,5 +1,7 @@
 package com.justinsb.ddpserver;
 
+import java.io.File;
+
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -13,13 +15,37 @@ import com.justinsb.ddpserver.triggeredpoll.TriggerDdpDataSource;
  */
 public class DdpServer {
   public static void main(String[] args) throws Exception {
-    final TriggerDdpDataSource ddpDataSource = new TriggerDdpDataSource(new InMemoryStorage(),
-        new InMemoryInvalidationSystem());
+    boolean virtualThreads = false;
+    File dataDir = null;
+    for (String arg : args) {
+      if (arg.equals("--virtual-threads")) {
+        virtualThreads = true;
+      } else if (arg.startsWith("--data-dir=")) {
+        dataDir = new File(arg.substring("--data-dir=".length()));
+      } else {
+        throw new IllegalArgumentException("Unknown argument: " + arg);
+      }
+    }
+
+    // With a data directory, writes are logged & recovered on restart; otherwise we start empty every time
+    InMemoryStorage storage = dataDir != null ? new InMemoryStorage(dataDir) : new InMemoryStorage();
+    final TriggerDdpDataSource ddpDataSource = new TriggerDdpDataSource(storage, new InMemoryInvalidationSystem());
+    if (virtualThreads) {
+      ddpDataSource.useVirtualThreads();
+    }
+
+    Server server = start(ddpDataSource, 3003);
+    server.join();
+  }
 
+  /**
+   * Starts a server for the data source; pass port 0 to listen on any free port (see the server's connector)
+   */
+  public static Server start(DdpDataSource ddpDataSource, int port) throws Exception {
     // Jetty boilerplate
     Server server = new Server();
     ServerConnector connector = new ServerConnector(server);
-    connector.setPort(3003);
+    connector.setPort(port);
     server.addConnector(connector);
     ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
     context.setContextPath("/");
@@ -29,7 +55,7 @@ public class DdpServer {
 
     // Start jetty
     server.start();
-    server.join();
+    return server;
   }
 
 }
\ No newline at end of file
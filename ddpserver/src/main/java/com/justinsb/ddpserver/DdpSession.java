@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,10 +13,9 @@ import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.justinsb.ddpserver.metrics.DdpMetrics;
 
 /**
  * A single connection to the DDP server
@@ -26,6 +26,7 @@ public class DdpSession {
   private static final Logger log = LoggerFactory.getLogger(DdpSession.class);
 
   final DdpConnection connection;
+  final DdpOutboundQueue outbound;
   final Map<String, DdpSubscription> subscriptions = Maps.newHashMap();
 
   final DdpDataSource dataSource;
@@ -33,20 +34,56 @@ public class DdpSession {
 
   final Map<Object, Object> state = Maps.newHashMap();
 
+  /**
+   * If set, we handle messages here rather than on the I/O thread
+   */
+  final Executor executor;
+
+  /**
+   * The DDP session id, once connected
+   */
+  volatile String sessionId;
+
+  volatile boolean traceEnabled;
+  final DdpWireTrace trace = DdpWireTrace.INSTANCE;
+  final DdpMetrics metrics;
+
   public DdpSession(DdpDataSource dataSource, DdpConnection connection) {
     this.dataSource = dataSource;
+    this.metrics = dataSource.getMetrics();
 
     this.connection = connection;
+    this.outbound = new DdpOutboundQueue(this, connection);
+
+    this.mergeBox = new DdpMergeBox(this, dataSource.getDocumentStore());
 
-    this.mergeBox = new DdpMergeBox(this);
+    this.executor = dataSource.getSessionExecutor(this);
+
+    metrics.sessionOpened(this);
   }
 
   public void gotMessage(final String message) {
-    log.info("Got message: {}", message);
+    if (executor != null) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          handleMessage(message);
+        }
+      });
+    } else {
+      handleMessage(message);
+    }
+  }
+
+  void handleMessage(String message) {
+    if (trace.isTraced(this)) {
+      trace.received(this, null, message);
+    }
 
     try {
-      JsonObject json = (JsonObject) new JsonParser().parse(message);
-      String msg = json.get("msg").getAsString();
+      DdpMessage json = DdpMessage.parse(message);
+      String msg = json.getMsg();
+      metrics.messagesIn(msg).increment();
       if (msg.equals("connect")) {
         onConnect(json);
       } else if (msg.equals("ping")) {
@@ -66,18 +103,31 @@ public class DdpSession {
     }
   }
 
-  private void onSubscribe(JsonObject json) throws Exception {
-    String subscriptionId = json.get("id").getAsString();
-    String name = json.get("name").getAsString();
-    JsonArray params = json.get("params").getAsJsonArray();
+  private void onSubscribe(DdpMessage json) throws Exception {
+    String subscriptionId = json.getId();
+    String name = json.getName();
+    JsonArray params = json.getParams();
 
-    DdpPublish publishFunction = this.dataSource.getPublishFunction(this, name, params);
+    DdpPublish publishFunction;
+    try {
+      // Parses the params (selector, sort, fields...); a bad one fails the subscription, not the connection
+      publishFunction = this.dataSource.getPublishFunction(this, name, params);
+    } catch (IllegalArgumentException e) {
+      log.debug("Bad params for subscription {}", name, e);
+      sendNosub(subscriptionId, new MeteorError(400, e.getMessage()));
+      return;
+    } catch (Exception e) {
+      log.warn("Error creating subscription {}", name, e);
+      sendNosub(subscriptionId, e);
+      return;
+    }
     if (publishFunction == null) {
       sendNosub(subscriptionId, new MeteorError(404, "Subscription not found"));
       return;
     }
 
-    DdpPublishContext context = new DdpPublishContext(this, subscriptionId, name);
+    DdpPublishContext context = new DdpPublishContext(this, subscriptionId, name, publishFunction.getProjection());
+    mergeBox.setProjection(subscriptionId, context.getProjection());
     DdpSubscription ddpSubscription;
 
     try {
@@ -108,8 +158,8 @@ public class DdpSession {
     subscription.begin();
   }
 
-  private void onUnsubscribe(JsonObject json) throws IOException {
-    String id = json.get("id").getAsString();
+  private void onUnsubscribe(DdpMessage json) throws IOException {
+    String id = json.getId();
     DdpSubscription subscription = getSubscription(id);
     if (subscription == null) {
       // XXX: Subscription not found?
@@ -119,44 +169,55 @@ public class DdpSession {
     subscription.end();
   }
 
-  private void onMethod(final JsonObject json) throws IOException {
+  private void onMethod(final DdpMessage json) throws IOException {
     // {"msg":"method","method":"/lists/insert","params":[{"name":"Meteor Principles","incompleteCount":7}],"id":"1"}
 
-    String methodId = json.get("id").getAsString();
-    String method = json.get("method").getAsString();
-    JsonArray params = json.get("params").getAsJsonArray();
+    String methodId = json.getId();
+    String method = json.getMethod();
+    JsonArray params = json.getParams();
 
     JsonObject response = new JsonObject();
     response.addProperty("id", methodId);
     response.addProperty("msg", "result");
 
+    DdpMethodResult result = null;
+    long startNanos = System.nanoTime();
     try {
-      DdpMethodResult result = dataSource.executeMethod(this, methodId, method, params);
-      Futures.addCallback(result.getCompletion(), new FutureCallback<Boolean>() {
-
-        @Override
-        public void onSuccess(Boolean result) {
-          sendComplete(methodId);
-        }
-
-        @Override
-        public void onFailure(Throwable t) {
-          sendComplete(methodId);
-        }
-
-      });
+      result = dataSource.executeMethod(this, methodId, method, params);
 
       if (result.getResult() != null) {
         response.add("result", result.getResult());
       }
     } catch (Exception e) {
-      sendComplete(methodId);
       log.warn("Got error from method", e);
       JsonObject error = DdpJson.buildError(e);
       response.add("error", error);
+    } finally {
+      // Failed methods take time too
+      metrics.methodExecution.recordSince(startNanos);
     }
 
     sendMessage(response);
+
+    if (result == null) {
+      sendComplete(methodId);
+      return;
+    }
+
+    // We send the result first; "updated" follows once the writes are visible to our subscriptions
+    Futures.addCallback(result.getCompletion(), new FutureCallback<Boolean>() {
+
+      @Override
+      public void onSuccess(Boolean result) {
+        sendComplete(methodId);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        sendComplete(methodId);
+      }
+
+    });
   }
 
   protected void sendComplete(String methodId) {
@@ -176,29 +237,84 @@ public class DdpSession {
     return subscriptions.get(id);
   }
 
-  private void onConnect(JsonObject connect) throws IOException {
+  private void onConnect(DdpMessage connect) throws IOException {
     String session = UUID.randomUUID().toString();
+    this.sessionId = session;
     JsonObject connected = new JsonObject();
     connected.addProperty("msg", "connected");
     connected.addProperty("session", session);
     sendMessage(connected);
   }
 
-  private void onPing(JsonObject ping) throws IOException {
+  private void onPing(DdpMessage ping) throws IOException {
     JsonObject pong = new JsonObject();
     pong.addProperty("msg", "pong");
 
-    JsonElement id = ping.get("id");
+    String id = ping.getId();
     if (id != null) {
-      pong.addProperty("id", id.getAsString());
+      pong.addProperty("id", id);
     }
     sendMessage(pong);
   }
 
   public void sendMessage(JsonObject msg) throws IOException {
-    String json = msg.toString();
-    log.info("Sending: {}", json);
-    connection.sendMessage(json);
+    sendEncoded(msg.toString());
+  }
+
+  /**
+   * Sends an already-encoded message; the same string may be shared by many sessions
+   */
+  public void sendEncoded(String json) throws IOException {
+    outbound.send(json);
+  }
+
+  /**
+   * Sends whatever is needed to move the client from one version of a document to another (either may be null).
+   * 
+   * If the client is behind, intermediate versions are skipped.
+   */
+  public void sendDocument(DdpDocument from, DdpDocument to) throws IOException {
+    outbound.sendDocument(from, to);
+  }
+
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Traces this session's traffic to the wire log; see {@link DdpWireTrace}
+   */
+  public void setTraceEnabled(boolean traceEnabled) {
+    this.traceEnabled = traceEnabled;
+  }
+
+  public DdpMergeBox getMergeBox() {
+    return mergeBox;
+  }
+
+  public DdpOutboundQueue getOutboundQueue() {
+    return outbound;
+  }
+
+  /**
+   * Holds messages until the matching {@link #endBatch()}, so they are written to the connection together.
+   * 
+   * Batches nest; we write when the outermost one ends.
+   */
+  public void beginBatch() {
+    outbound.beginBatch();
+  }
+
+  public void endBatch() throws IOException {
+    outbound.endBatch();
+  }
+
+  /**
+   * Messages sent outside a batch wait up to this long for company before they are written; zero (the default) sends
+   * them immediately
+   */
+  public void setLingerMillis(long lingerMillis) {
+    outbound.setLingerMillis(lingerMillis);
   }
 
   public void notifyMethodSync(List<String> methodIds) throws IOException {
@@ -223,7 +339,23 @@ public class DdpSession {
   }
 
   public void onClose() {
-    log.info("Connection closed");
+    if (executor != null) {
+      // After any messages still queued
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          handleClose();
+        }
+      });
+    } else {
+      handleClose();
+    }
+  }
+
+  void handleClose() {
+    log.debug("Connection closed");
+
+    metrics.sessionClosed(this);
 
     for (DdpSubscription subscription : subscriptions.values()) {
       subscription.disconnected();
@@ -231,6 +363,7 @@ public class DdpSession {
 
     // Aggressively free the merge-box data
     this.mergeBox.disconnected();
+    this.outbound.close();
   }
 
   public <T> T getState(Class<T> clazz) {
@@ -243,7 +376,7 @@ public class DdpSession {
   }
 
   public void recalculateSubscriptions() {
-    log.info("Recalculating subscriptions");
+    log.debug("Recalculating subscriptions");
 
     for (DdpSubscription subscription : subscriptions.values()) {
       try {
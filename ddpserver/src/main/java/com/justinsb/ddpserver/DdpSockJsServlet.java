@@ -1,6 +1,7 @@
 package com.justinsb.ddpserver;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.projectodd.sockjs.SockJsConnection;
 import org.projectodd.sockjs.SockJsServer;
@@ -8,6 +9,8 @@ import org.projectodd.sockjs.servlet.SockJsServlet;
 
 import javax.servlet.ServletException;
 
+import com.justinsb.ddpserver.triggeredpoll.DdpExecutors;
+
 /**
  * SockJS-based listener for DDP
  */
@@ -37,12 +40,49 @@ public class DdpSockJsServlet extends SockJsServlet {
           @Override
           public void sendMessage(String json) throws IOException {
             synchronized (this) {
-              if (!connection.write(json)) {
-                throw new IOException("Error writing message");
+              write(json);
+            }
+          }
+
+          @Override
+          public void sendMessages(List<String> messages) throws IOException {
+            // We write the batch without interleaving; polling transports send what has been written meanwhile as
+            // one array frame
+            synchronized (this) {
+              for (String json : messages) {
+                write(json);
               }
             }
           }
 
+          @Override
+          public void sendMessages(final List<String> messages, final SendCallback callback) {
+            // SockJS writes block; we make them on a writer thread, so a slow client doesn't hold up whoever is
+            // sending, and what is sent meanwhile waits in the outbound queue (where it counts towards the lag)
+            DdpExecutors.WRITER.execute(new Runnable() {
+              @Override
+              public void run() {
+                Throwable error = null;
+                try {
+                  sendMessages(messages);
+                } catch (IOException | RuntimeException e) {
+                  error = e;
+                }
+                callback.completed(error);
+              }
+            });
+          }
+
+          /**
+           * A write SockJS refuses is a failed send; the session is closed (& its subscriptions torn down) rather than
+           * carrying on with a client that is missing messages
+           */
+          private void write(String json) throws IOException {
+            if (!connection.write(json)) {
+              throw new IOException("Error writing message");
+            }
+          }
+
           @Override
           public void close() {
             connection.close();
@@ -1,18 +1,21 @@
 package com.justinsb.ddpserver;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 
 import javax.websocket.CloseReason;
 import javax.websocket.Endpoint;
 import javax.websocket.EndpointConfig;
 import javax.websocket.MessageHandler;
+import javax.websocket.RemoteEndpoint;
 import javax.websocket.Session;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Maps;
+import com.justinsb.ddpserver.triggeredpoll.DdpExecutors;
 
 /**
  * A direct WebSocket implementation of DDP; without SockJS
@@ -41,17 +44,45 @@ public class DdpWebsocketEndpoint extends Endpoint {
       @Override
       public void sendMessage(String json) throws IOException {
         synchronized (this) {
-          // if (!connection.write(json)) {
-          // throw new IOException("Error writing message");
-          // }
-          // try {
           session.getBasicRemote().sendText(json);
-          // } catch (IOException ex) {
-          // log.log(Level.WARNING, "Error sending raw websocket data", ex);
-          // }
         }
       }
 
+      @Override
+      public void sendMessages(List<String> messages) throws IOException {
+        // DDP clients expect one message per frame, but with batching the frames go out in a single write
+        synchronized (this) {
+          RemoteEndpoint.Basic remote = session.getBasicRemote();
+          remote.setBatchingAllowed(true);
+          try {
+            for (String json : messages) {
+              remote.sendText(json);
+            }
+            remote.flushBatch();
+          } finally {
+            remote.setBatchingAllowed(false);
+          }
+        }
+      }
+
+      @Override
+      public void sendMessages(final List<String> messages, final SendCallback callback) {
+        // The batched write blocks, so we make it on a writer thread; a slow client doesn't hold up whoever is sending,
+        // and what is sent meanwhile waits in the outbound queue (where it counts towards the client's lag)
+        DdpExecutors.WRITER.execute(new Runnable() {
+          @Override
+          public void run() {
+            Throwable error = null;
+            try {
+              sendMessages(messages);
+            } catch (IOException | RuntimeException e) {
+              error = e;
+            }
+            callback.completed(error);
+          }
+        });
+      }
+
       @Override
       public void close() throws IOException {
         session.close();
@@ -0,0 +1,162 @@
+package com.justinsb.ddpserver;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Traces DDP traffic to the "com.justinsb.ddpserver.wire" logger.
+ *
+ * Off by default; it can be switched on at runtime for all sessions, for particular sessions (by DDP session id, or
+ * {@link DdpSession#setTraceEnabled}), and restricted to particular message types or a sample of messages. When a
+ * session isn't traced, the cost is a couple of volatile reads; we don't format anything.
+ *
+ * Messages are logged from a background thread, so tracing doesn't slow down the session; if the logger can't keep up
+ * we drop messages (and count them).
+ *
+ */
+public class DdpWireTrace {
+
+  private static final Logger log = LoggerFactory.getLogger("com.justinsb.ddpserver.wire");
+
+  public static final DdpWireTrace INSTANCE = new DdpWireTrace();
+
+  static final int QUEUE_SIZE = 10000;
+
+  volatile boolean allSessions;
+  final Set<String> sessionIds = Sets.newConcurrentHashSet();
+
+  /**
+   * The message types to trace; empty for all
+   */
+  volatile Set<String> messageTypes = ImmutableSet.of();
+
+  volatile int sampleEvery = 1;
+  final AtomicLong sampleCounter = new AtomicLong();
+
+  final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+  final AtomicLong dropped = new AtomicLong();
+  Thread writer;
+
+  public void setAllSessions(boolean allSessions) {
+    this.allSessions = allSessions;
+  }
+
+  public void traceSession(String sessionId, boolean enabled) {
+    if (enabled) {
+      sessionIds.add(sessionId);
+    } else {
+      sessionIds.remove(sessionId);
+    }
+  }
+
+  public void setMessageTypes(Set<String> messageTypes) {
+    this.messageTypes = ImmutableSet.copyOf(messageTypes);
+  }
+
+  /**
+   * Trace only one in every n messages (that otherwise match)
+   */
+  public void setSampleEvery(int sampleEvery) {
+    this.sampleEvery = Math.max(1, sampleEvery);
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  boolean isTraced(DdpSession session) {
+    if (allSessions || session.traceEnabled) {
+      return true;
+    }
+    if (sessionIds.isEmpty()) {
+      return false;
+    }
+    String sessionId = session.sessionId;
+    return sessionId != null && sessionIds.contains(sessionId);
+  }
+
+  /**
+   * Called for an inbound message on a traced session
+   */
+  void received(DdpSession session, String msg, String json) {
+    record(session, "<", msg, json);
+  }
+
+  /**
+   * Called for an outbound message on a traced session
+   */
+  void sent(DdpSession session, String json) {
+    record(session, ">", null, json);
+  }
+
+  private void record(DdpSession session, String direction, String msg, String json) {
+    Set<String> messageTypes = this.messageTypes;
+    if (!messageTypes.isEmpty()) {
+      if (msg == null) {
+        msg = getMessageType(json);
+      }
+      if (!messageTypes.contains(msg)) {
+        return;
+      }
+    }
+
+    int sampleEvery = this.sampleEvery;
+    if (sampleEvery > 1 && (sampleCounter.incrementAndGet() % sampleEvery) != 0) {
+      return;
+    }
+
+    if (!queue.offer(session.sessionId + " " + direction + " " + json)) {
+      dropped.incrementAndGet();
+      return;
+    }
+    ensureWriter();
+  }
+
+  private synchronized void ensureWriter() {
+    if (writer != null) {
+      return;
+    }
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          try {
+            log.info(queue.take());
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            log.warn("Error writing trace", e);
+          }
+        }
+      }
+    }, "ddp-wire-trace");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Finds the msg field without parsing the message; we always write it as a top-level string
+   */
+  static String getMessageType(String json) {
+    String marker = "\"msg\":\"";
+    int start = json.indexOf(marker);
+    if (start == -1) {
+      return null;
+    }
+    start += marker.length();
+    int end = json.indexOf('"', start);
+    if (end == -1) {
+      return null;
+    }
+    return json.substring(start, end);
+  }
+
+}
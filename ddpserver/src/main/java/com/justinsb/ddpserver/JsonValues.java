@@ -0,0 +1,109 @@
+package com.justinsb.ddpserver;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Comparison of JSON values, with Mongo's semantics: values of different types order by type (null, numbers, strings,
+ * objects, arrays, booleans), and numbers compare by value whatever their representation.
+ *
+ */
+public class JsonValues {
+
+  static final int NULL = 0;
+  static final int NUMBER = 1;
+  static final int STRING = 2;
+  static final int OBJECT = 3;
+  static final int ARRAY = 4;
+  static final int BOOLEAN = 5;
+
+  /**
+   * The rank of the value's type in the sort order; a missing value (null) sorts as null
+   */
+  public static int typeRank(JsonElement value) {
+    if (value == null || value.isJsonNull()) {
+      return NULL;
+    }
+    if (value.isJsonObject()) {
+      return OBJECT;
+    }
+    if (value.isJsonArray()) {
+      return ARRAY;
+    }
+    JsonPrimitive primitive = value.getAsJsonPrimitive();
+    if (primitive.isNumber()) {
+      return NUMBER;
+    }
+    if (primitive.isBoolean()) {
+      return BOOLEAN;
+    }
+    return STRING;
+  }
+
+  public static boolean sameType(JsonElement a, JsonElement b) {
+    return typeRank(a) == typeRank(b);
+  }
+
+  public static int compare(JsonElement a, JsonElement b) {
+    int rankA = typeRank(a);
+    int rankB = typeRank(b);
+    if (rankA != rankB) {
+      return Integer.compare(rankA, rankB);
+    }
+
+    switch (rankA) {
+    case NULL:
+      return 0;
+    case NUMBER:
+      return Double.compare(a.getAsDouble(), b.getAsDouble());
+    case STRING:
+      return a.getAsString().compareTo(b.getAsString());
+    case BOOLEAN:
+      return Boolean.compare(a.getAsBoolean(), b.getAsBoolean());
+    default:
+      // Not worth a structural comparison; just be consistent
+      return a.toString().compareTo(b.toString());
+    }
+  }
+
+  public static boolean equal(JsonElement a, JsonElement b) {
+    int rank = typeRank(a);
+    if (rank != typeRank(b)) {
+      return false;
+    }
+    switch (rank) {
+    case NULL:
+      return true;
+    case NUMBER:
+      return a.getAsDouble() == b.getAsDouble();
+    default:
+      return a.equals(b);
+    }
+  }
+
+  /**
+   * Looks up a field, which may be a dotted path into nested objects; returns null if it is missing
+   */
+  public static JsonElement getPath(JsonObject fields, String path) {
+    if (path.indexOf('.') == -1) {
+      return fields.get(path);
+    }
+
+    JsonElement current = fields;
+    int start = 0;
+    while (true) {
+      if (current == null || !current.isJsonObject()) {
+        return null;
+      }
+      int end = path.indexOf('.', start);
+      String name = end == -1 ? path.substring(start) : path.substring(start, end);
+      current = current.getAsJsonObject().get(name);
+      if (end == -1) {
+        return current;
+      }
+      start = end + 1;
+    }
+  }
+
+}
@@ -1,19 +1,68 @@
 package com.justinsb.ddpserver;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.hash.Hashing;
 import com.google.gson.JsonElement;
 
 public interface Jsonable {
 
   JsonElement toJsonElement();
 
-  public static Jsonable fromJson(final JsonElement jsonElement) {
-    return new Jsonable() {
+  /**
+   * The serialized JSON; implementations may cache it
+   */
+  default String toJson() {
+    return toJsonElement().toString();
+  }
+
+  /**
+   * The serialized JSON, as UTF-8; implementations may cache it, so callers must not modify the returned array
+   */
+  default byte[] toUtf8() {
+    return toJson().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The length of the serialized JSON, in UTF-8 bytes
+   */
+  default int utf8Length() {
+    return toUtf8().length;
+  }
 
-      @Override
-      public JsonElement toJsonElement() {
-        return jsonElement;
-      }
-    };
+  /**
+   * A 64-bit hash of the serialized JSON.
+   * 
+   * Different hashes mean different content; equal hashes only probably mean equal content (see
+   * {@link #contentEquals}). The same fields in a different order may hash differently.
+   */
+  default long contentHash() {
+    return hash(toUtf8());
+  }
+
+  /**
+   * True if the serialized JSON is the same; the hashes rule out most differences cheaply, and the bytes confirm a match
+   */
+  default boolean contentEquals(Jsonable other) {
+    if (this == other) {
+      return true;
+    }
+    if (contentHash() != other.contentHash()) {
+      return false;
+    }
+    return Arrays.equals(toUtf8(), other.toUtf8());
+  }
+
+  static long hash(byte[] utf8) {
+    return Hashing.murmur3_128().hashBytes(utf8).asLong();
+  }
+
+  /**
+   * Wraps the element, which must not be modified afterwards
+   */
+  public static Jsonable fromJson(final JsonElement jsonElement) {
+    return new CachedJsonable(jsonElement);
   }
 
 }
@@ -0,0 +1,84 @@
+package com.justinsb.ddpserver;
+
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * An immutable {@link Jsonable} backed by its serialized UTF-8 (e.g. a slice of a memory-mapped file), which is only
+ * parsed when the element is first needed.
+ *
+ * The serialized form is not copied onto the heap (other than transiently, when asked for), so documents that are
+ * never read cost only the buffer. The parsed element is only softly held: it saves re-parsing a document that is
+ * read repeatedly, but the buffer stays the real copy, and the heap can reclaim the element under pressure.
+ *
+ */
+public final class LazyJsonable implements Jsonable {
+  final ByteBuffer buffer;
+
+  private volatile SoftReference<JsonElement> jsonElement;
+  private volatile long contentHash;
+  private volatile boolean hashed;
+
+  /**
+   * The buffer's contents (from 0 to its limit) must not change
+   */
+  public LazyJsonable(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public JsonElement toJsonElement() {
+    SoftReference<JsonElement> reference = this.jsonElement;
+    JsonElement jsonElement = reference != null ? reference.get() : null;
+    if (jsonElement == null) {
+      jsonElement = new JsonParser().parse(toJson());
+      this.jsonElement = new SoftReference<JsonElement>(jsonElement);
+    }
+    return jsonElement;
+  }
+
+  @Override
+  public String toJson() {
+    return new String(toUtf8(), StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public byte[] toUtf8() {
+    byte[] utf8 = new byte[buffer.limit()];
+    buffer.get(0, utf8);
+    return utf8;
+  }
+
+  @Override
+  public int utf8Length() {
+    return buffer.limit();
+  }
+
+  @Override
+  public long contentHash() {
+    if (!hashed) {
+      contentHash = Jsonable.hash(toUtf8());
+      hashed = true;
+    }
+    return contentHash;
+  }
+
+  @Override
+  public boolean contentEquals(Jsonable other) {
+    if (other instanceof LazyJsonable && contentHash() == other.contentHash()) {
+      // Compare in place, without copying either onto the heap
+      return buffer.duplicate().rewind().equals(((LazyJsonable) other).buffer.duplicate().rewind());
+    }
+    return Jsonable.super.contentEquals(other);
+  }
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+
+}
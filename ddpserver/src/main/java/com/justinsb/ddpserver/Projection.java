@@ -0,0 +1,163 @@
+package com.justinsb.ddpserver;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * The fields of a document a publication sends, as a Mongo-style include ({"name": 1, "listId": 1}) or exclude
+ * ({"blob": 0}) list of top-level fields.
+ *
+ * The id is always sent (it isn't one of the fields in DDP), so "_id" is ignored.
+ *
+ */
+public class Projection {
+  final boolean include;
+  final ImmutableSet<String> fields;
+  final String key;
+
+  private Projection(boolean include, Set<String> fields) {
+    this.include = include;
+    this.fields = ImmutableSet.copyOf(fields);
+    this.key = (include ? "+" : "-") + Ordering.natural().sortedCopy(fields);
+  }
+
+  public static Projection include(Set<String> fields) {
+    return new Projection(true, fields);
+  }
+
+  public static Projection exclude(Set<String> fields) {
+    return new Projection(false, fields);
+  }
+
+  public static Projection parse(JsonObject spec) {
+    Set<String> fields = Sets.newLinkedHashSet();
+    Boolean include = null;
+    for (Entry<String, JsonElement> entry : spec.entrySet()) {
+      String field = entry.getKey();
+      if (field.equals("_id")) {
+        continue;
+      }
+      if (field.indexOf('.') != -1 || field.startsWith("$")) {
+        throw new IllegalArgumentException("Unsupported projection field: " + field);
+      }
+      boolean fieldInclude = isInclude(entry.getValue());
+      if (include != null && include != fieldInclude) {
+        throw new IllegalArgumentException("Projection cannot both include and exclude fields: " + spec);
+      }
+      include = fieldInclude;
+      fields.add(field);
+    }
+    if (include == null) {
+      return null;
+    }
+    return new Projection(include, fields);
+  }
+
+  private static boolean isInclude(JsonElement value) {
+    if (value.isJsonPrimitive()) {
+      JsonPrimitive primitive = value.getAsJsonPrimitive();
+      if (primitive.isBoolean()) {
+        return primitive.getAsBoolean();
+      }
+      if (primitive.isNumber()) {
+        return primitive.getAsDouble() != 0;
+      }
+    }
+    throw new IllegalArgumentException("Unsupported projection value: " + value);
+  }
+
+  /**
+   * A canonical form of the projection: equal projections have equal keys, whatever order their fields were given in
+   */
+  public String getKey() {
+    return key;
+  }
+
+  public boolean isIncluded(String field) {
+    return fields.contains(field) == include;
+  }
+
+  /**
+   * The fields we send, if this is an include list; null if we send all but some
+   */
+  public Set<String> getIncludedFields() {
+    return include ? fields : null;
+  }
+
+  /**
+   * Returns the document with only the projected fields; the same object if that is all of them
+   */
+  public Jsonable apply(Jsonable document) {
+    if (document instanceof LazyJsonable) {
+      return applyUnparsed(document);
+    }
+
+    JsonObject fields = document.toJsonElement().getAsJsonObject();
+
+    boolean all = true;
+    for (Entry<String, JsonElement> entry : fields.entrySet()) {
+      if (!isIncluded(entry.getKey())) {
+        all = false;
+        break;
+      }
+    }
+    if (all) {
+      return document;
+    }
+
+    // Stored documents are never modified, so we can share the values
+    JsonObject projected = new JsonObject();
+    for (Entry<String, JsonElement> entry : fields.entrySet()) {
+      if (isIncluded(entry.getKey())) {
+        projected.add(entry.getKey(), entry.getValue());
+      }
+    }
+    return Jsonable.fromJson(projected);
+  }
+
+  /**
+   * Projects a document we haven't parsed (and may never need to) from its JSON, only parsing the fields we keep
+   */
+  private Jsonable applyUnparsed(Jsonable document) {
+    JsonObject projected = new JsonObject();
+    boolean all = true;
+    try {
+      JsonReader reader = new JsonReader(new StringReader(document.toJson()));
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String field = reader.nextName();
+        if (isIncluded(field)) {
+          projected.add(field, new JsonParser().parse(reader));
+        } else {
+          all = false;
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IOException | IllegalStateException e) {
+      throw new JsonParseException("Error projecting document", e);
+    }
+    if (all) {
+      return document;
+    }
+    return Jsonable.fromJson(projected);
+  }
+
+  @Override
+  public String toString() {
+    return "Projection [" + (include ? "include " : "exclude ") + fields + "]";
+  }
+
+}
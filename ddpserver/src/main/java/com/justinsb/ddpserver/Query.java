@@ -1,5 +1,6 @@
 package com.justinsb.ddpserver;
 
+import java.util.List;
 import java.util.Map.Entry;
 
 /**
@@ -14,4 +15,58 @@ public interface Query {
 
   Iterable<Entry<String, Jsonable>> getItems();
 
+  /**
+   * The order of the results, or null if they are unordered
+   */
+  default Sort getSort() {
+    return null;
+  }
+
+  /**
+   * The maximum number of results, or 0 for no limit
+   */
+  default int getLimit() {
+    return 0;
+  }
+
+  /**
+   * The fields of each result we send, or null for all of them.
+   * 
+   * The query itself returns whole documents (so matching and sorting can use any field); the projection is applied
+   * to the results.
+   */
+  default Projection getProjection() {
+    return null;
+  }
+
+  /**
+   * The first count results in sort order, ignoring the limit; lets a limited query look past the end of its results.
+   * 
+   * Returns null if not supported, in which case a limited query is re-run on every change.
+   */
+  default Iterable<Entry<String, Jsonable>> getItems(int count) {
+    return null;
+  }
+
+  /**
+   * Checks if a document belongs in the query results; used when applying the change feed
+   */
+  default boolean matches(String id, Jsonable document) {
+    return true;
+  }
+
+  /**
+   * @see Storage#getChangePosition(String)
+   */
+  default long getChangePosition() {
+    return -1;
+  }
+
+  /**
+   * @see Storage#getChanges(String, long)
+   */
+  default List<StorageChange> getChanges(long afterPosition) {
+    return null;
+  }
+
 }
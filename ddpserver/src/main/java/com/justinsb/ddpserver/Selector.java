@@ -0,0 +1,322 @@
+package com.justinsb.ddpserver;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * A Mongo-style selector, e.g. {"listId": "abc", "priority": {"$gte": 3}}.
+ *
+ * We support field equality (including $eq), $in, the range operators ($gt, $gte, $lt, $lte), and $and / $or. Fields
+ * may be dotted paths into nested objects. As in Mongo, a condition on an array field matches if it matches any
+ * element, and ranges only match values of the same type as the bound.
+ *
+ */
+public abstract class Selector {
+
+  public abstract boolean matches(String id, JsonObject fields);
+
+  public boolean matches(String id, Jsonable document) {
+    return matches(id, document.toJsonElement().getAsJsonObject());
+  }
+
+  /**
+   * True if the selector matches every document
+   */
+  public boolean isAll() {
+    return false;
+  }
+
+  /**
+   * Adds the top-level fields the selector looks at to fields
+   */
+  public abstract void addFields(Set<String> fields);
+
+  /**
+   * The top-level field a (possibly dotted) path starts with
+   */
+  static String getTopLevelField(String path) {
+    int dot = path.indexOf('.');
+    return dot == -1 ? path : path.substring(0, dot);
+  }
+
+  public static Selector parse(JsonObject json) {
+    List<Selector> children = Lists.newArrayList();
+    for (Entry<String, JsonElement> entry : json.entrySet()) {
+      String key = entry.getKey();
+      JsonElement value = entry.getValue();
+      if (key.equals("$and")) {
+        children.add(new And(parseList(key, value)));
+      } else if (key.equals("$or")) {
+        children.add(new Or(parseList(key, value)));
+      } else if (key.startsWith("$")) {
+        throw new IllegalArgumentException("Unsupported selector operator: " + key);
+      } else if (isOperatorObject(value)) {
+        for (Entry<String, JsonElement> op : value.getAsJsonObject().entrySet()) {
+          children.add(new Condition(key, Operator.fromName(op.getKey()), op.getValue()));
+        }
+      } else {
+        children.add(new Condition(key, Operator.EQ, value));
+      }
+    }
+
+    if (children.size() == 1) {
+      return children.get(0);
+    }
+    return new And(children);
+  }
+
+  private static List<Selector> parseList(String operator, JsonElement value) {
+    if (!value.isJsonArray() || value.getAsJsonArray().size() == 0) {
+      throw new IllegalArgumentException(operator + " requires a non-empty array");
+    }
+    List<Selector> selectors = Lists.newArrayList();
+    for (JsonElement element : value.getAsJsonArray()) {
+      if (!element.isJsonObject()) {
+        throw new IllegalArgumentException(operator + " requires an array of selectors");
+      }
+      selectors.add(parse(element.getAsJsonObject()));
+    }
+    return selectors;
+  }
+
+  /**
+   * An object whose keys are all operators is a condition; any other object is a value to compare against
+   */
+  private static boolean isOperatorObject(JsonElement value) {
+    if (!value.isJsonObject()) {
+      return false;
+    }
+    JsonObject object = value.getAsJsonObject();
+    if (object.entrySet().isEmpty()) {
+      return false;
+    }
+    for (Entry<String, JsonElement> entry : object.entrySet()) {
+      if (!entry.getKey().startsWith("$")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public enum Operator {
+    EQ("$eq"), IN("$in"), GT("$gt"), GTE("$gte"), LT("$lt"), LTE("$lte");
+
+    final String name;
+
+    Operator(String name) {
+      this.name = name;
+    }
+
+    static Operator fromName(String name) {
+      for (Operator operator : values()) {
+        if (operator.name.equals(name)) {
+          return operator;
+        }
+      }
+      throw new IllegalArgumentException("Unsupported selector operator: " + name);
+    }
+
+    public boolean isRange() {
+      return this == GT || this == GTE || this == LT || this == LTE;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * A single condition on a field
+   */
+  public static class Condition extends Selector {
+    final String field;
+    final Operator operator;
+    final JsonElement operand;
+
+    public Condition(String field, Operator operator, JsonElement operand) {
+      if (operator == Operator.IN && !operand.isJsonArray()) {
+        throw new IllegalArgumentException("$in requires an array");
+      }
+      this.field = field;
+      this.operator = operator;
+      this.operand = operand;
+    }
+
+    public String getField() {
+      return field;
+    }
+
+    public Operator getOperator() {
+      return operator;
+    }
+
+    public JsonElement getOperand() {
+      return operand;
+    }
+
+    /**
+     * For equality & $in, the values the field must take
+     */
+    public List<JsonElement> getValues() {
+      if (operator == Operator.EQ) {
+        return ImmutableList.of(operand);
+      }
+      if (operator == Operator.IN) {
+        return Lists.newArrayList(operand.getAsJsonArray());
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean matches(String id, JsonObject fields) {
+      if (field.equals("_id")) {
+        return matchesValue(new JsonPrimitive(id));
+      }
+
+      JsonElement value = JsonValues.getPath(fields, field);
+      if (matchesValue(value)) {
+        return true;
+      }
+      if (value != null && value.isJsonArray()) {
+        for (JsonElement element : value.getAsJsonArray()) {
+          if (matchesValue(element)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    private boolean matchesValue(JsonElement value) {
+      switch (operator) {
+      case EQ:
+        return JsonValues.equal(value, operand);
+
+      case IN:
+        for (JsonElement candidate : operand.getAsJsonArray()) {
+          if (JsonValues.equal(value, candidate)) {
+            return true;
+          }
+        }
+        return false;
+
+      default:
+        if (value == null || !JsonValues.sameType(value, operand)) {
+          return false;
+        }
+        int c = JsonValues.compare(value, operand);
+        switch (operator) {
+        case GT:
+          return c > 0;
+        case GTE:
+          return c >= 0;
+        case LT:
+          return c < 0;
+        case LTE:
+          return c <= 0;
+        default:
+          throw new IllegalStateException();
+        }
+      }
+    }
+
+    @Override
+    public void addFields(Set<String> fields) {
+      if (!field.equals("_id")) {
+        fields.add(getTopLevelField(field));
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "{" + field + ": {" + operator + ": " + operand + "}}";
+    }
+  }
+
+  public static class And extends Selector {
+    final List<Selector> children;
+
+    public And(List<Selector> children) {
+      this.children = ImmutableList.copyOf(children);
+    }
+
+    public List<Selector> getChildren() {
+      return children;
+    }
+
+    @Override
+    public boolean matches(String id, JsonObject fields) {
+      for (Selector child : children) {
+        if (!child.matches(id, fields)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean isAll() {
+      for (Selector child : children) {
+        if (!child.isAll()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void addFields(Set<String> fields) {
+      for (Selector child : children) {
+        child.addFields(fields);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "{$and: " + children + "}";
+    }
+  }
+
+  public static class Or extends Selector {
+    final List<Selector> children;
+
+    public Or(List<Selector> children) {
+      this.children = ImmutableList.copyOf(children);
+    }
+
+    public List<Selector> getChildren() {
+      return children;
+    }
+
+    @Override
+    public boolean matches(String id, JsonObject fields) {
+      for (Selector child : children) {
+        if (child.matches(id, fields)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void addFields(Set<String> fields) {
+      for (Selector child : children) {
+        child.addFields(fields);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "{$or: " + children + "}";
+    }
+  }
+
+}
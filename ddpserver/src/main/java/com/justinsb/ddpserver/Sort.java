@@ -0,0 +1,125 @@
+package com.justinsb.ddpserver;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * A Mongo-style sort order over documents, e.g. {"createdAt": -1, "name": 1}.
+ *
+ * Values compare as in {@link JsonValues}; ties are broken by id, so the order is total and a limited query has
+ * exactly one answer.
+ *
+ */
+public class Sort implements Comparator<Entry<String, Jsonable>> {
+
+  public static final Sort BY_ID = new Sort(ImmutableList.<Key> of());
+
+  static class Key {
+    final String field;
+    final boolean descending;
+
+    Key(String field, boolean descending) {
+      this.field = field;
+      this.descending = descending;
+    }
+
+    @Override
+    public String toString() {
+      return field + (descending ? ":-1" : ":1");
+    }
+  }
+
+  final List<Key> keys;
+
+  private Sort(List<Key> keys) {
+    this.keys = ImmutableList.copyOf(keys);
+  }
+
+  /**
+   * Parses {"field": 1, "other": -1}, or [["field", "asc"], ["other", "desc"]]
+   */
+  public static Sort parse(JsonElement spec) {
+    List<Key> keys = Lists.newArrayList();
+    if (spec.isJsonObject()) {
+      for (Entry<String, JsonElement> entry : spec.getAsJsonObject().entrySet()) {
+        keys.add(new Key(entry.getKey(), isDescending(entry.getValue())));
+      }
+    } else if (spec.isJsonArray()) {
+      for (JsonElement element : spec.getAsJsonArray()) {
+        if (element.isJsonArray()) {
+          JsonArray pair = element.getAsJsonArray();
+          if (pair.size() != 2) {
+            throw new IllegalArgumentException("Unsupported sort: " + spec);
+          }
+          keys.add(new Key(pair.get(0).getAsString(), isDescending(pair.get(1))));
+        } else {
+          keys.add(new Key(element.getAsString(), false));
+        }
+      }
+    } else {
+      throw new IllegalArgumentException("Unsupported sort: " + spec);
+    }
+    return new Sort(keys);
+  }
+
+  private static boolean isDescending(JsonElement direction) {
+    JsonPrimitive primitive = direction.getAsJsonPrimitive();
+    if (primitive.isNumber()) {
+      return primitive.getAsInt() < 0;
+    }
+    String s = primitive.getAsString();
+    if (s.equals("asc") || s.equals("ascending")) {
+      return false;
+    }
+    if (s.equals("desc") || s.equals("descending")) {
+      return true;
+    }
+    throw new IllegalArgumentException("Unsupported sort direction: " + direction);
+  }
+
+  /**
+   * Adds the top-level fields we sort on to fields
+   */
+  public void addFields(Set<String> fields) {
+    for (Key key : keys) {
+      if (!key.field.equals("_id")) {
+        fields.add(Selector.getTopLevelField(key.field));
+      }
+    }
+  }
+
+  @Override
+  public int compare(Entry<String, Jsonable> a, Entry<String, Jsonable> b) {
+    if (!keys.isEmpty()) {
+      JsonObject fieldsA = a.getValue().toJsonElement().getAsJsonObject();
+      JsonObject fieldsB = b.getValue().toJsonElement().getAsJsonObject();
+      for (Key key : keys) {
+        int c;
+        if (key.field.equals("_id")) {
+          c = a.getKey().compareTo(b.getKey());
+        } else {
+          c = JsonValues.compare(JsonValues.getPath(fieldsA, key.field), JsonValues.getPath(fieldsB, key.field));
+        }
+        if (c != 0) {
+          return key.descending ? -c : c;
+        }
+      }
+    }
+    return a.getKey().compareTo(b.getKey());
+  }
+
+  @Override
+  public String toString() {
+    return "Sort" + keys;
+  }
+
+}
@@ -1,7 +1,11 @@
 package com.justinsb.ddpserver;
 
+import java.util.List;
 import java.util.Map.Entry;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 
@@ -13,7 +17,60 @@ public interface Storage {
 
   Iterable<Entry<String, Jsonable>> query(String collectionName);
 
+  /**
+   * Returns the documents in the collection that match the selector.
+   * 
+   * The default filters the whole collection; stores with indexes should do better.
+   */
+  default Iterable<Entry<String, Jsonable>> query(String collectionName, final Selector selector) {
+    Iterable<Entry<String, Jsonable>> items = query(collectionName);
+    if (selector == null || selector.isAll()) {
+      return items;
+    }
+    return Iterables.filter(items, new Predicate<Entry<String, Jsonable>>() {
+      @Override
+      public boolean apply(Entry<String, Jsonable> entry) {
+        return selector.matches(entry.getKey(), entry.getValue());
+      }
+    });
+  }
+
+  /**
+   * Returns the first limit documents matching the selector, in sort order (all of them if limit is 0).
+   * 
+   * The default keeps the best limit documents in a single pass over the matches.
+   */
+  default Iterable<Entry<String, Jsonable>> query(String collectionName, Selector selector, Sort sort, int limit) {
+    Iterable<Entry<String, Jsonable>> items = query(collectionName, selector);
+    if (sort == null) {
+      return limit > 0 ? Iterables.limit(items, limit) : items;
+    }
+    if (limit > 0) {
+      return Ordering.from(sort).leastOf(items, limit);
+    }
+    return Ordering.from(sort).sortedCopy(items);
+  }
+
   JsonElement executeCollectionMethod(DdpSession session, String methodId, String collectionName,
       String collectionMethod, JsonArray params);
 
+  /**
+   * Returns the position of the most recent change in the collection's change feed, or -1 if there is no change feed.
+   * 
+   * Read this before querying, so that no change is missed.
+   */
+  default long getChangePosition(String collectionName) {
+    return -1;
+  }
+
+  /**
+   * Returns the changes to the collection after the given position, in order.
+   * 
+   * Returns null if the feed no longer goes back that far (or there is no change feed); callers should then re-query
+   * the whole collection.
+   */
+  default List<StorageChange> getChanges(String collectionName, long afterPosition) {
+    return null;
+  }
+
 }
@@ -0,0 +1,57 @@
+package com.justinsb.ddpserver;
+
+/**
+ * A single entry in a {@link Storage} change feed
+ *
+ */
+public class StorageChange {
+  public enum Type {
+    ADDED, CHANGED, REMOVED
+  }
+
+  final long position;
+  final Type type;
+  final String id;
+  final Jsonable document;
+  final Jsonable previous;
+
+  public StorageChange(long position, Type type, String id, Jsonable document, Jsonable previous) {
+    this.position = position;
+    this.type = type;
+    this.id = id;
+    this.document = document;
+    this.previous = previous;
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * The new value of the document; null for removals
+   */
+  public Jsonable getDocument() {
+    return document;
+  }
+
+  /**
+   * The value of the document before the change; null for additions
+   */
+  public Jsonable getPrevious() {
+    return previous;
+  }
+
+  @Override
+  public String toString() {
+    return "StorageChange [position=" + position + ", type=" + type + ", id=" + id + "]";
+  }
+
+}
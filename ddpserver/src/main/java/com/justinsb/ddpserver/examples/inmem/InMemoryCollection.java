@@ -1,39 +1,428 @@
 package com.justinsb.ddpserver.examples.inmem;
 
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
 import java.util.UUID;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.justinsb.ddpserver.JsonValues;
 import com.justinsb.ddpserver.Jsonable;
-
+import com.justinsb.ddpserver.Selector;
+import com.justinsb.ddpserver.StorageChange;
+
+/**
+ * A collection of documents held in memory.
+ *
+ * Readers see immutable {@link InMemorySnapshot}s, so queries never block (or are blocked by) writes, and can't see a
+ * write half-applied. Writes are serialized; each publishes a new snapshot along with its entry in the change feed, so
+ * a snapshot's position says exactly which changes it includes.
+ *
+ * Secondary indexes (see {@link #ensureIndex}) are updated in place by the writer, inside a sequence-numbered window;
+ * a query that reads an index re-checks the sequence afterwards, and retries if a write overlapped, so the index and
+ * the snapshot it reads always agree.
+ *
+ * If the collection has a log, each write is appended to it (in position order) before the write lock is released,
+ * but is only published (to queries and the change feed) once the caller has synced the log past it; see
+ * {@link #publish}. Until then, only later writes (e.g. an update's read of the document) see it.
+ *
+ */
 public class InMemoryCollection {
 
   private static final Logger log = LoggerFactory.getLogger(InMemoryCollection.class);
 
   final String name;
 
-  final Map<String, Jsonable> items = Maps.newHashMap();
+  /**
+   * The write-ahead log, if the collection is durable
+   */
+  final InMemoryLog wal;
+
+  /**
+   * How many changes we keep in the change feed
+   */
+  static final int MAX_CHANGES = 10000;
+
+  volatile InMemorySnapshot snapshot = InMemorySnapshot.EMPTY;
+
+  /**
+   * Includes the writes that are logged but not yet durable; the same as the snapshot if we have no log
+   */
+  volatile InMemorySnapshot latest = InMemorySnapshot.EMPTY;
+
+  /**
+   * Writes logged but not yet published, in position order (guarded by the write lock)
+   */
+  final Deque<StorageChange> unpublished = new ArrayDeque<StorageChange>();
+
+  /**
+   * Held for the whole of a write, so read-modify-write is safe; readers never take it
+   */
+  final Object writeLock = new Object();
+
+  final Deque<StorageChange> changes = new ArrayDeque<StorageChange>();
+
+  /**
+   * Secondary indexes, by field
+   */
+  final ConcurrentMap<String, InMemoryIndex> indexes = Maps.newConcurrentMap();
+
+  /**
+   * Odd while a write is updating the indexes
+   */
+  volatile long sequence;
+
+  /**
+   * How many times a query retries an index read that overlapped a write, before scanning instead
+   */
+  static final int MAX_INDEX_ATTEMPTS = 8;
 
   public InMemoryCollection(String name) {
+    this(name, null);
+  }
+
+  public InMemoryCollection(String name, InMemoryLog wal) {
     this.name = name;
+    this.wal = wal;
   }
 
   public String getName() {
     return name;
   }
 
-  public Set<Entry<String, Jsonable>> getItems() {
-    return items.entrySet();
+  /**
+   * The current contents; the snapshot never changes, however long it is held
+   */
+  public InMemorySnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  public Iterable<Entry<String, Jsonable>> getItems() {
+    return snapshot.getItems();
+  }
+
+  public long getChangePosition() {
+    return snapshot.getPosition();
+  }
+
+  /**
+   * The contents including writes not yet durable (or published); for writing storage snapshots, which are durable
+   * themselves
+   */
+  InMemorySnapshot getLatestSnapshot() {
+    return latest;
+  }
+
+  /**
+   * Replaces the contents with a recovered snapshot; the change feed starts again from its position
+   */
+  void restore(InMemorySnapshot restored) {
+    synchronized (writeLock) {
+      sequence++;
+      for (InMemoryIndex index : indexes.values()) {
+        for (Entry<String, Jsonable> entry : snapshot.getItems()) {
+          index.remove(entry.getKey(), entry.getValue().toJsonElement().getAsJsonObject());
+        }
+        for (Entry<String, Jsonable> entry : restored.getItems()) {
+          index.add(entry.getKey(), entry.getValue().toJsonElement().getAsJsonObject());
+        }
+      }
+
+      synchronized (changes) {
+        changes.clear();
+        unpublished.clear();
+        snapshot = restored;
+        latest = restored;
+      }
+      sequence++;
+    }
+  }
+
+  /**
+   * Adds a secondary index on the field (a dotted path); a sorted index also serves range queries.
+   * 
+   * Replaces an unsorted index on the field if sorted is set.
+   */
+  public void ensureIndex(String field, boolean sorted) {
+    synchronized (writeLock) {
+      InMemoryIndex existing = indexes.get(field);
+      if (existing != null && (existing.isSorted() || !sorted)) {
+        return;
+      }
+
+      // No write can happen while we build, so queries that see the new index see it complete & current
+      InMemoryIndex index = new InMemoryIndex(field, sorted);
+      for (Entry<String, Jsonable> entry : snapshot.getItems()) {
+        index.add(entry.getKey(), entry.getValue().toJsonElement().getAsJsonObject());
+      }
+      indexes.put(field, index);
+    }
+  }
+
+  /**
+   * Returns the documents matching the selector, all from the same snapshot.
+   * 
+   * If an index covers the selector (or a branch of every $or), we fetch and check only the documents it names;
+   * otherwise we scan.
+   */
+  public Iterable<Entry<String, Jsonable>> query(final Selector selector) {
+    if (selector == null || selector.isAll()) {
+      return getItems();
+    }
+
+    for (int attempt = 0; attempt < MAX_INDEX_ATTEMPTS; attempt++) {
+      long sequence = this.sequence;
+      if ((sequence & 1) == 0) {
+        InMemorySnapshot snapshot = this.snapshot;
+        Collection<String> candidates = findCandidates(selector);
+        if (candidates == null) {
+          return scan(snapshot, selector);
+        }
+        if (this.sequence == sequence) {
+          List<Entry<String, Jsonable>> results = Lists.newArrayList();
+          for (String id : candidates) {
+            Jsonable document = snapshot.get(id);
+            if (document != null && selector.matches(id, document)) {
+              results.add(Maps.immutableEntry(id, document));
+            }
+          }
+          return results;
+        }
+      }
+      Thread.onSpinWait();
+    }
+
+    log.debug("Index reads kept overlapping writes; scanning {}", name);
+    return scan(snapshot, selector);
+  }
+
+  private static Iterable<Entry<String, Jsonable>> scan(InMemorySnapshot snapshot, final Selector selector) {
+    return Iterables.filter(snapshot.getItems(), new Predicate<Entry<String, Jsonable>>() {
+      @Override
+      public boolean apply(Entry<String, Jsonable> entry) {
+        return selector.matches(entry.getKey(), entry.getValue());
+      }
+    });
+  }
+
+  /**
+   * Returns the ids of the documents that might match (a superset of the matches), or null if no index helps
+   */
+  private Collection<String> findCandidates(Selector selector) {
+    if (selector instanceof Selector.Condition) {
+      Selector.Condition condition = (Selector.Condition) selector;
+      if (condition.getOperator().isRange()) {
+        return findRangeCandidates(ImmutableList.of(condition));
+      }
+      return findEqualityCandidates(condition);
+    }
+
+    if (selector instanceof Selector.Or) {
+      Set<String> candidates = Sets.newLinkedHashSet();
+      for (Selector child : ((Selector.Or) selector).getChildren()) {
+        Collection<String> childCandidates = findCandidates(child);
+        if (childCandidates == null) {
+          return null;
+        }
+        candidates.addAll(childCandidates);
+      }
+      return candidates;
+    }
+
+    if (selector instanceof Selector.And) {
+      // Equality lookups are cheap; use the most selective. Failing that, a range (bounded at both ends if we can)
+      List<Selector.Condition> ranges = Lists.newArrayList();
+      Collection<String> best = null;
+      for (Selector child : ((Selector.And) selector).getChildren()) {
+        if (child instanceof Selector.Condition && ((Selector.Condition) child).getOperator().isRange()) {
+          ranges.add((Selector.Condition) child);
+          continue;
+        }
+        Collection<String> childCandidates = findCandidates(child);
+        if (childCandidates != null && (best == null || childCandidates.size() < best.size())) {
+          best = childCandidates;
+        }
+      }
+      if (best != null) {
+        return best;
+      }
+      return findRangeCandidates(ranges);
+    }
+
+    return null;
+  }
+
+  private Collection<String> findEqualityCandidates(Selector.Condition condition) {
+    List<JsonElement> values = condition.getValues();
+    Set<String> candidates = Sets.newLinkedHashSet();
+
+    if (condition.getField().equals("_id")) {
+      for (JsonElement value : values) {
+        if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()) {
+          candidates.add(value.getAsString());
+        }
+      }
+      return candidates;
+    }
+
+    InMemoryIndex index = indexes.get(condition.getField());
+    if (index == null) {
+      return null;
+    }
+    for (JsonElement value : values) {
+      // Other values (e.g. null, which also matches a missing field) aren't in the index
+      if (!InMemoryIndex.isIndexable(value)) {
+        return null;
+      }
+    }
+    for (JsonElement value : values) {
+      index.lookup(value, candidates);
+    }
+    return candidates;
+  }
+
+  /**
+   * Uses a sorted index for the first indexed field with a range condition, combining a lower and upper bound on it
+   */
+  private Collection<String> findRangeCandidates(List<Selector.Condition> conditions) {
+    for (Selector.Condition condition : conditions) {
+      InMemoryIndex index = indexes.get(condition.getField());
+      if (index == null || !index.isSorted() || !InMemoryIndex.isIndexable(condition.getOperand())) {
+        continue;
+      }
+
+      Selector.Condition low = null;
+      Selector.Condition high = null;
+      for (Selector.Condition bound : conditions) {
+        if (!bound.getField().equals(condition.getField()) || !InMemoryIndex.isIndexable(bound.getOperand())
+            || !JsonValues.sameType(bound.getOperand(), condition.getOperand())) {
+          continue;
+        }
+        Selector.Operator operator = bound.getOperator();
+        if ((operator == Selector.Operator.GT || operator == Selector.Operator.GTE) && low == null) {
+          low = bound;
+        } else if ((operator == Selector.Operator.LT || operator == Selector.Operator.LTE) && high == null) {
+          high = bound;
+        }
+      }
+
+      Set<String> candidates = Sets.newLinkedHashSet();
+      index.range(low == null ? null : low.getOperand(), low != null && low.getOperator() == Selector.Operator.GTE,
+          high == null ? null : high.getOperand(), high != null && high.getOperator() == Selector.Operator.LTE,
+          candidates);
+      return candidates;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the changes after the given position, or null if we no longer have them all
+   */
+  public List<StorageChange> getChanges(long afterPosition) {
+    synchronized (changes) {
+      if (afterPosition >= snapshot.getPosition()) {
+        return Lists.newArrayList();
+      }
+      StorageChange oldest = changes.peekFirst();
+      if (oldest == null || oldest.getPosition() > afterPosition + 1) {
+        return null;
+      }
+
+      List<StorageChange> ret = Lists.newArrayList();
+      for (StorageChange change : changes) {
+        if (change.getPosition() > afterPosition) {
+          ret.add(change);
+        }
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * Records a write (the caller holds the write lock); publishes it, unless it must wait for the log to be synced
+   */
+  private void recordChange(StorageChange.Type type, String id, Jsonable document, Jsonable previous) {
+    InMemorySnapshot current = latest;
+    long position = current.getPosition() + 1;
+    StorageChange change = new StorageChange(position, type, id, document, previous);
+
+    if (wal == null) {
+      latest = current.with(position, id, document);
+      publishChange(change);
+      return;
+    }
+
+    // Throws (without changing anything) if the log has failed
+    wal.append(name, position, id, document);
+    latest = current.with(position, id, document);
+    unpublished.addLast(change);
+  }
+
+  /**
+   * Publishes the writes up to the position, which the log has made durable
+   */
+  void publish(long position) {
+    synchronized (writeLock) {
+      while (!unpublished.isEmpty() && unpublished.peekFirst().getPosition() <= position) {
+        publishChange(unpublished.removeFirst());
+      }
+    }
+  }
+
+  /**
+   * The position of the last write, published or not
+   */
+  long getLatestPosition() {
+    return latest.getPosition();
+  }
+
+  /**
+   * Makes a write visible to queries and the change feed (the caller holds the write lock)
+   */
+  private void publishChange(StorageChange change) {
+    String id = change.getId();
+    Jsonable document = change.getDocument();
+    Jsonable previous = change.getPrevious();
+    long position = change.getPosition();
+
+    // Build the new version before taking the feed lock, so we hold it only briefly
+    InMemorySnapshot next = snapshot.with(position, id, document);
+
+    sequence++;
+    for (InMemoryIndex index : indexes.values()) {
+      if (previous != null) {
+        index.remove(id, previous.toJsonElement().getAsJsonObject());
+      }
+      if (document != null) {
+        index.add(id, document.toJsonElement().getAsJsonObject());
+      }
+    }
+
+    synchronized (changes) {
+      changes.addLast(change);
+      while (changes.size() > MAX_CHANGES) {
+        changes.removeFirst();
+      }
+      snapshot = next;
+    }
+    sequence++;
   }
 
   public JsonElement insert(JsonObject item) {
@@ -47,14 +436,18 @@ public class InMemoryCollection {
     if (id == null) {
       id = UUID.randomUUID().toString();
     }
-    if (items.containsKey(id)) {
-      throw new IllegalArgumentException();
-    }
     JsonObject store = clone(item);
     if (store.has("_id")) {
       store.remove("_id");
     }
-    items.put(id, Jsonable.fromJson(store));
+    Jsonable document = Jsonable.fromJson(store);
+
+    synchronized (writeLock) {
+      if (latest.containsKey(id)) {
+        throw new IllegalArgumentException();
+      }
+      recordChange(StorageChange.Type.ADDED, id, document, null);
+    }
 
     if (!item.has("_id")) {
       item.addProperty("_id", id);
@@ -65,7 +458,7 @@ public class InMemoryCollection {
   }
 
   public JsonElement update(JsonArray params) {
-    log.info("Got update: {}", params);
+    log.debug("Got update: {}", params);
 
     if (params.size() != 3) {
       throw new IllegalArgumentException();
@@ -85,46 +478,52 @@ public class InMemoryCollection {
       throw new IllegalStateException("Unsupported selector (no _id): " + selector);
     }
 
-    Jsonable item = items.get(idSelector);
+    synchronized (writeLock) {
+      Jsonable item = latest.get(idSelector);
+      if (item != null) {
+        apply(idSelector, item, mutator);
+      }
+    }
+
+    // XXX: What is the result?
+    JsonObject result = new JsonObject();
+    return result;
+  }
 
+  private void apply(String id, Jsonable item, JsonObject mutator) {
     JsonObject newItem = clone((JsonObject) item.toJsonElement());
 
     // TODO: Don't special case everything!
-    if (item != null) {
-      for (Entry<String, JsonElement> entry : mutator.entrySet()) {
-        String key = entry.getKey();
-        if (key.equals("$inc")) {
-          JsonObject spec = entry.getValue().getAsJsonObject();
-          for (Entry<String, JsonElement> specEntry : spec.entrySet()) {
-            String fieldName = specEntry.getKey();
-            int delta = specEntry.getValue().getAsInt();
-
-            JsonElement fieldValue = newItem.get(fieldName);
-            int existing = 0;
-            if (fieldValue != null) {
-              existing = fieldValue.getAsInt();
-            }
-            newItem.addProperty(fieldName, existing + delta);
+    for (Entry<String, JsonElement> entry : mutator.entrySet()) {
+      String key = entry.getKey();
+      if (key.equals("$inc")) {
+        JsonObject spec = entry.getValue().getAsJsonObject();
+        for (Entry<String, JsonElement> specEntry : spec.entrySet()) {
+          String fieldName = specEntry.getKey();
+          int delta = specEntry.getValue().getAsInt();
+
+          JsonElement fieldValue = newItem.get(fieldName);
+          int existing = 0;
+          if (fieldValue != null) {
+            existing = fieldValue.getAsInt();
           }
-        } else if (key.equals("$set")) {
-          JsonObject spec = entry.getValue().getAsJsonObject();
-          for (Entry<String, JsonElement> specEntry : spec.entrySet()) {
-            String fieldName = specEntry.getKey();
-            JsonElement newValue = specEntry.getValue();
+          newItem.addProperty(fieldName, existing + delta);
+        }
+      } else if (key.equals("$set")) {
+        JsonObject spec = entry.getValue().getAsJsonObject();
+        for (Entry<String, JsonElement> specEntry : spec.entrySet()) {
+          String fieldName = specEntry.getKey();
+          JsonElement newValue = specEntry.getValue();
 
-            newItem.add(fieldName, newValue);
-          }
-        } else {
-          throw new IllegalArgumentException("Unsupported mutator: " + mutator);
+          newItem.add(fieldName, newValue);
         }
+      } else {
+        throw new IllegalArgumentException("Unsupported mutator: " + mutator);
       }
-
-      items.put(idSelector, Jsonable.fromJson(newItem));
     }
 
-    // XXX: What is the result?
-    JsonObject result = new JsonObject();
-    return result;
+    Jsonable document = Jsonable.fromJson(newItem);
+    recordChange(StorageChange.Type.CHANGED, id, document, item);
   }
 
   String selectorToId(JsonObject selector) {
@@ -142,7 +541,7 @@ public class InMemoryCollection {
   }
 
   public JsonElement remove(JsonArray params) {
-    log.info("Got remove: {}", params);
+    log.debug("Got remove: {}", params);
 
     if (params.size() != 1) {
       throw new IllegalArgumentException();
@@ -155,9 +554,12 @@ public class InMemoryCollection {
       throw new IllegalStateException("Unsupported selector (no _id): " + selector);
     }
 
-    Jsonable removed = items.remove(idSelector);
-    if (removed != null) {
-      log.debug("Removed item {}", idSelector);
+    synchronized (writeLock) {
+      Jsonable removed = latest.get(idSelector);
+      if (removed != null) {
+        log.debug("Removed item {}", idSelector);
+        recordChange(StorageChange.Type.REMOVED, idSelector, null, removed);
+      }
     }
     // XXX: What is the result?
     JsonObject result = new JsonObject();
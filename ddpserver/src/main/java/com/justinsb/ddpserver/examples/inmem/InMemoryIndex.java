@@ -0,0 +1,211 @@
+package com.justinsb.ddpserver.examples.inmem;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.justinsb.ddpserver.JsonValues;
+
+/**
+ * A secondary index on a field of an {@link InMemoryCollection}: a map from field value to the ids of the documents
+ * with that value. A sorted index can also answer range queries.
+ *
+ * Only primitive values are indexed (each element, for an array); numbers are indexed by their double value. The
+ * index is maintained by the collection's (single) writer and read concurrently by queries, which check that no write
+ * overlapped their read; see {@link InMemoryCollection#query}.
+ *
+ */
+public class InMemoryIndex {
+
+  /**
+   * Orders keys as Mongo does: numbers, then strings, then booleans
+   */
+  static final Comparator<Object> KEY_ORDER = new Comparator<Object>() {
+    @Override
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public int compare(Object a, Object b) {
+      int c = Integer.compare(rank(a), rank(b));
+      if (c != 0) {
+        return c;
+      }
+      return ((Comparable) a).compareTo(b);
+    }
+
+    int rank(Object key) {
+      if (key instanceof Double) {
+        return 0;
+      }
+      if (key instanceof String) {
+        return 1;
+      }
+      return 2;
+    }
+  };
+
+  final String field;
+  final boolean sorted;
+
+  final ConcurrentMap<Object, Set<String>> entries;
+
+  public InMemoryIndex(String field, boolean sorted) {
+    this.field = field;
+    this.sorted = sorted;
+    if (sorted) {
+      this.entries = new ConcurrentSkipListMap<Object, Set<String>>(KEY_ORDER);
+    } else {
+      this.entries = Maps.newConcurrentMap();
+    }
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public boolean isSorted() {
+    return sorted;
+  }
+
+  /**
+   * The key we index a value under, or null if we don't index it
+   */
+  static Object toKey(JsonElement value) {
+    if (value == null || !value.isJsonPrimitive()) {
+      return null;
+    }
+    JsonPrimitive primitive = value.getAsJsonPrimitive();
+    if (primitive.isNumber()) {
+      return primitive.getAsDouble();
+    }
+    if (primitive.isBoolean()) {
+      return primitive.getAsBoolean();
+    }
+    return primitive.getAsString();
+  }
+
+  /**
+   * Can we look up the value (i.e. would a document with the value be indexed)?
+   */
+  static boolean isIndexable(JsonElement value) {
+    return toKey(value) != null;
+  }
+
+  void add(String id, JsonObject fields) {
+    JsonElement value = JsonValues.getPath(fields, field);
+    addKey(id, toKey(value));
+    if (value != null && value.isJsonArray()) {
+      for (JsonElement element : value.getAsJsonArray()) {
+        addKey(id, toKey(element));
+      }
+    }
+  }
+
+  void remove(String id, JsonObject fields) {
+    JsonElement value = JsonValues.getPath(fields, field);
+    removeKey(id, toKey(value));
+    if (value != null && value.isJsonArray()) {
+      for (JsonElement element : value.getAsJsonArray()) {
+        removeKey(id, toKey(element));
+      }
+    }
+  }
+
+  private void addKey(String id, Object key) {
+    if (key == null) {
+      return;
+    }
+    Set<String> ids = entries.get(key);
+    if (ids == null) {
+      ids = Sets.newConcurrentHashSet();
+      entries.put(key, ids);
+    }
+    ids.add(id);
+  }
+
+  private void removeKey(String id, Object key) {
+    if (key == null) {
+      return;
+    }
+    Set<String> ids = entries.get(key);
+    if (ids != null) {
+      ids.remove(id);
+      if (ids.isEmpty()) {
+        entries.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Adds the ids of documents with the value to candidates
+   */
+  void lookup(JsonElement value, Collection<String> candidates) {
+    Set<String> ids = entries.get(toKey(value));
+    if (ids != null) {
+      candidates.addAll(ids);
+    }
+  }
+
+  /**
+   * Adds the ids of documents with values in the range to candidates; a null bound is unbounded (within the type of
+   * the other bound; at least one must be set)
+   */
+  void range(JsonElement low, boolean lowInclusive, JsonElement high, boolean highInclusive,
+      Collection<String> candidates) {
+    if (!sorted) {
+      throw new IllegalStateException("Index is not sorted: " + field);
+    }
+    NavigableMap<Object, Set<String>> map = (NavigableMap<Object, Set<String>>) entries;
+
+    Object lowKey = toKey(low);
+    Object highKey = toKey(high);
+    Object typeKey = lowKey != null ? lowKey : highKey;
+
+    NavigableMap<Object, Set<String>> range;
+    if (lowKey != null) {
+      range = map.tailMap(lowKey, lowInclusive);
+    } else {
+      range = map.tailMap(lowestOfType(typeKey), true);
+    }
+
+    for (Entry<Object, Set<String>> entry : range.entrySet()) {
+      Object key = entry.getKey();
+      if (key.getClass() != typeKey.getClass()) {
+        // Ranges only match values of the bound's type
+        break;
+      }
+      if (highKey != null) {
+        int c = KEY_ORDER.compare(key, highKey);
+        if (c > 0 || (c == 0 && !highInclusive)) {
+          break;
+        }
+      }
+      candidates.addAll(entry.getValue());
+    }
+  }
+
+  private static Object lowestOfType(Object key) {
+    if (key instanceof Double) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    if (key instanceof String) {
+      return "";
+    }
+    return Boolean.FALSE;
+  }
+
+  /**
+   * The number of distinct values; a rough guide to selectivity
+   */
+  public int getKeyCount() {
+    return entries.size();
+  }
+
+}
@@ -0,0 +1,331 @@
+package com.justinsb.ddpserver.examples.inmem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.justinsb.ddpserver.Jsonable;
+import com.justinsb.ddpserver.LazyJsonable;
+
+/**
+ * A write-ahead log for {@link InMemoryStorage}: every write to a collection is appended as a record of the document's
+ * new version (or its removal), tagged with its change position, so replaying the log rebuilds the collections.
+ *
+ * Records are buffered as they are appended, and written & fsynced by {@link #sync}. Syncs are group-committed: only
+ * one thread fsyncs at a time, and each fsync covers every record appended before it started, so a caller whose
+ * records were covered by another thread's fsync returns without one of its own.
+ *
+ * The log is split into numbered segments. A snapshot names the first segment it doesn't cover (see
+ * {@link InMemoryStorage#snapshot}), so compaction rotates to a new segment, writes the snapshot, and deletes the
+ * older segments.
+ *
+ * Each record is framed with its length and a CRC32; a record torn by a crash is detected (and dropped) on recovery.
+ *
+ * If a write or fsync fails we can no longer tell which records reached the disk, so the log fails for good: every
+ * later append, sync and rotation throws.
+ *
+ */
+public class InMemoryLog implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(InMemoryLog.class);
+
+  static final byte RECORD_PUT = 1;
+  static final byte RECORD_REMOVE = 2;
+
+  /**
+   * Frames larger than this are treated as corrupt
+   */
+  static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+  /**
+   * Receives the records of a log segment as it is replayed
+   */
+  public interface RecordHandler {
+    void put(String collectionName, long position, String id, Jsonable document);
+
+    void remove(String collectionName, long position, String id);
+  }
+
+  final File dir;
+
+  long segment;
+  FileChannel channel;
+
+  /**
+   * Records appended but not yet written to the channel
+   */
+  ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+  /**
+   * Bytes appended over the life of the log, and how many of them are durable
+   */
+  long appended;
+  volatile long synced;
+
+  /**
+   * Set when a write or fsync fails
+   */
+  volatile IOException failure;
+
+  /**
+   * Held while writing & fsyncing (and rotating); appends only take the lock on this, so they don't wait on the disk
+   */
+  final Object syncLock = new Object();
+
+  public InMemoryLog(File dir, long segment) throws IOException {
+    this.dir = dir;
+    this.segment = segment;
+    this.channel = open(dir, segment);
+  }
+
+  static String segmentFileName(long segment) {
+    return String.format("log-%016d.wal", segment);
+  }
+
+  /**
+   * The segment number of a log file, or -1 if it isn't one
+   */
+  static long parseSegment(String fileName) {
+    if (!fileName.startsWith("log-") || !fileName.endsWith(".wal")) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(fileName.substring(4, fileName.length() - 4));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static FileChannel open(File dir, long segment) throws IOException {
+    File file = new File(dir, segmentFileName(segment));
+    return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+  }
+
+  public synchronized long getSegment() {
+    return segment;
+  }
+
+  /**
+   * The number of bytes appended over the life of the log
+   */
+  public synchronized long getAppended() {
+    return appended;
+  }
+
+  /**
+   * Throws if the log has failed; writers check before publishing a write they will log
+   */
+  public void checkWritable() {
+    IOException failure = this.failure;
+    if (failure != null) {
+      throw new IllegalStateException("Log has failed", failure);
+    }
+  }
+
+  private void checkFailed() throws IOException {
+    IOException failure = this.failure;
+    if (failure != null) {
+      throw new IOException("Log has failed", failure);
+    }
+  }
+
+  /**
+   * Appends a record of a write; the caller should hold the collection's write lock, so records are in position order.
+   *
+   * The record isn't durable until {@link #sync}.
+   */
+  public void append(String collectionName, long position, String id, Jsonable document) {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+    try {
+      DataOutputStream out = new DataOutputStream(payload);
+      out.writeByte(document != null ? RECORD_PUT : RECORD_REMOVE);
+      out.writeUTF(collectionName);
+      out.writeLong(position);
+      out.writeUTF(id);
+      if (document != null) {
+        byte[] json = document.toUtf8();
+        out.writeInt(json.length);
+        out.write(json);
+      }
+      out.flush();
+    } catch (IOException e) {
+      // Writes to memory can't fail
+      throw new IllegalStateException(e);
+    }
+
+    byte[] bytes = payload.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    ByteBuffer header = ByteBuffer.allocate(8);
+    header.putInt(bytes.length);
+    header.putInt((int) crc.getValue());
+
+    synchronized (this) {
+      checkWritable();
+      pending.write(header.array(), 0, 8);
+      pending.write(bytes, 0, bytes.length);
+      appended += 8 + bytes.length;
+    }
+  }
+
+  /**
+   * Returns once every record appended before the call is durable
+   */
+  public void sync() throws IOException {
+    long target;
+    synchronized (this) {
+      target = appended;
+    }
+    if (synced >= target) {
+      return;
+    }
+
+    synchronized (syncLock) {
+      if (synced >= target) {
+        // Another thread's fsync covered us
+        return;
+      }
+      checkFailed();
+      try {
+        long upTo = write();
+        channel.force(false);
+        synced = upTo;
+      } catch (IOException e) {
+        // The records we took from pending may or may not be on disk; nothing after them can be durable
+        failure = e;
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Writes the pending records to the channel (the caller holds the sync lock), returning the appended count they
+   * take us to
+   */
+  private long write() throws IOException {
+    ByteArrayOutputStream records;
+    long upTo;
+    synchronized (this) {
+      records = pending;
+      upTo = appended;
+      pending = new ByteArrayOutputStream();
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    return upTo;
+  }
+
+  /**
+   * Makes the current segment durable and starts a new one; returns the new segment's number.
+   *
+   * Records appended after the call go to the new segment (as may some appended during it; replay skips records a
+   * snapshot already has, so that's harmless).
+   */
+  public long rotate() throws IOException {
+    synchronized (syncLock) {
+      checkFailed();
+      try {
+        long upTo = write();
+        FileChannel old = channel;
+        long next = segment + 1;
+        channel = open(dir, next);
+        synchronized (this) {
+          segment = next;
+        }
+        old.force(false);
+        old.close();
+        synced = Math.max(synced, upTo);
+        return next;
+      } catch (IOException e) {
+        failure = e;
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      sync();
+    } finally {
+      synchronized (syncLock) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Replays a segment; returns the length of its complete records.
+   *
+   * Stops at a torn or corrupt record, which is expected only at the end of the last segment (a crash mid-write).
+   */
+  public static long replay(File file, RecordHandler handler) throws IOException {
+    long valid = 0;
+    try (InputStream is = new BufferedInputStream(new FileInputStream(file), 1024 * 1024)) {
+      DataInputStream in = new DataInputStream(is);
+      while (true) {
+        int length;
+        int checksum;
+        byte[] bytes;
+        try {
+          length = in.readInt();
+          checksum = in.readInt();
+          if (length < 0 || length > MAX_RECORD_SIZE) {
+            log.warn("Bad record length {} at {} in {}", length, valid, file);
+            break;
+          }
+          bytes = new byte[length];
+          in.readFully(bytes);
+        } catch (EOFException e) {
+          break;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != checksum) {
+          log.warn("Bad record checksum at {} in {}", valid, file);
+          break;
+        }
+
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte type = record.readByte();
+        String collectionName = record.readUTF();
+        long position = record.readLong();
+        String id = record.readUTF();
+        if (type == RECORD_PUT) {
+          byte[] json = new byte[record.readInt()];
+          record.readFully(json);
+          // Parsed when first used, like the documents in the snapshot
+          handler.put(collectionName, position, id, new LazyJsonable(ByteBuffer.wrap(json)));
+        } else if (type == RECORD_REMOVE) {
+          handler.remove(collectionName, position, id);
+        } else {
+          throw new IllegalStateException("Unknown record type " + type + " at " + valid + " in " + file);
+        }
+
+        valid += 8 + length;
+      }
+    }
+    return valid;
+  }
+
+}
@@ -0,0 +1,416 @@
+package com.justinsb.ddpserver.examples.inmem;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.justinsb.ddpserver.Jsonable;
+
+/**
+ * An immutable version of an {@link InMemoryCollection}'s contents, as of a change position.
+ *
+ * The documents are held in a hash array mapped trie: each node branches on 5 bits of the id's hash, and holds only
+ * the branches that are in use. A write copies just the path from the root to the document it touches (a handful of
+ * nodes of at most 32 slots, however large the collection) and shares the rest with the previous snapshot. Readers can
+ * hold on to a snapshot for as long as they like, without locking and without seeing later writes.
+ *
+ */
+public class InMemorySnapshot {
+
+  static final int BITS = 5;
+  static final int MASK = (1 << BITS) - 1;
+
+  static final InMemorySnapshot EMPTY = new InMemorySnapshot(0, null, 0);
+
+  final long position;
+
+  /**
+   * A {@link Node}, a single entry, or null if there are no documents
+   */
+  final Object root;
+  final int size;
+
+  private InMemorySnapshot(long position, Object root, int size) {
+    this.position = position;
+    this.root = root;
+    this.size = size;
+  }
+
+  static int hash(String id) {
+    // Mix the high bits into the low ones, which we branch on first
+    int h = id.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * The change position of the last write included in the snapshot
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public Jsonable get(String id) {
+    int hash = hash(id);
+    Object slot = root;
+    int shift = 0;
+    while (slot instanceof Node) {
+      slot = ((Node) slot).find(hash, shift, id);
+      shift += BITS;
+    }
+    if (slot != null) {
+      @SuppressWarnings("unchecked")
+      Entry<String, Jsonable> entry = (Entry<String, Jsonable>) slot;
+      if (entry.getKey().equals(id)) {
+        return entry.getValue();
+      }
+    }
+    return null;
+  }
+
+  public boolean containsKey(String id) {
+    return get(id) != null;
+  }
+
+  public Iterable<Entry<String, Jsonable>> getItems() {
+    final Object root = this.root;
+    return new Iterable<Entry<String, Jsonable>>() {
+      @Override
+      public Iterator<Entry<String, Jsonable>> iterator() {
+        return new EntryIterator(root);
+      }
+    };
+  }
+
+  /**
+   * Builds a snapshot of the documents in one pass; for loading, where building it a write at a time would copy a path
+   * per document
+   */
+  static InMemorySnapshot of(long position, Map<String, Jsonable> documents) {
+    List<Entry<String, Jsonable>> entries = Lists.newArrayListWithCapacity(documents.size());
+    for (Entry<String, Jsonable> entry : documents.entrySet()) {
+      entries.add(Maps.immutableEntry(entry.getKey(), entry.getValue()));
+    }
+    return new InMemorySnapshot(position, build(entries, 0), documents.size());
+  }
+
+  private static Object build(List<Entry<String, Jsonable>> entries, int shift) {
+    if (entries.isEmpty()) {
+      return null;
+    }
+    if (entries.size() == 1) {
+      return entries.get(0);
+    }
+    if (shift >= 32) {
+      // Every bit of the hash is the same
+      return new CollisionNode(entries.toArray());
+    }
+
+    List<List<Entry<String, Jsonable>>> buckets = Lists.newArrayListWithCapacity(1 << BITS);
+    for (int i = 0; i < (1 << BITS); i++) {
+      buckets.add(null);
+    }
+    int bitmap = 0;
+    for (Entry<String, Jsonable> entry : entries) {
+      int index = (hash(entry.getKey()) >>> shift) & MASK;
+      List<Entry<String, Jsonable>> bucket = buckets.get(index);
+      if (bucket == null) {
+        bucket = Lists.newArrayList();
+        buckets.set(index, bucket);
+        bitmap |= 1 << index;
+      }
+      bucket.add(entry);
+    }
+
+    Object[] slots = new Object[Integer.bitCount(bitmap)];
+    int next = 0;
+    for (List<Entry<String, Jsonable>> bucket : buckets) {
+      if (bucket != null) {
+        slots[next++] = build(bucket, shift + BITS);
+      }
+    }
+    return new BitmapNode(bitmap, slots);
+  }
+
+  /**
+   * Returns a new snapshot with the document set (or removed, if document is null)
+   */
+  InMemorySnapshot with(long position, String id, Jsonable document) {
+    int hash = hash(id);
+    if (document == null) {
+      if (get(id) == null) {
+        return new InMemorySnapshot(position, root, size);
+      }
+      return new InMemorySnapshot(position, remove(root, hash, 0, id), size - 1);
+    }
+
+    boolean existed = get(id) != null;
+    Entry<String, Jsonable> entry = Maps.immutableEntry(id, document);
+    return new InMemorySnapshot(position, put(root, hash, 0, entry), existed ? size : size + 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object put(Object slot, int hash, int shift, Entry<String, Jsonable> entry) {
+    if (slot == null) {
+      return entry;
+    }
+    if (slot instanceof Node) {
+      return ((Node) slot).put(hash, shift, entry);
+    }
+
+    Entry<String, Jsonable> existing = (Entry<String, Jsonable>) slot;
+    if (existing.getKey().equals(entry.getKey())) {
+      return entry;
+    }
+    // Two entries share this slot; push them both down a level
+    Object node = split(existing, hash(existing.getKey()), shift);
+    return ((Node) node).put(hash, shift, entry);
+  }
+
+  /**
+   * A node at the shift level holding just the entry
+   */
+  private static Object split(Entry<String, Jsonable> entry, int hash, int shift) {
+    if (shift >= 32) {
+      return new CollisionNode(new Object[] { entry });
+    }
+    return new BitmapNode(1 << ((hash >>> shift) & MASK), new Object[] { entry });
+  }
+
+  /**
+   * Returns the slot without the id (which must be present), or null if nothing is left
+   */
+  private static Object remove(Object slot, int hash, int shift, String id) {
+    if (slot instanceof Node) {
+      return ((Node) slot).remove(hash, shift, id);
+    }
+    return null;
+  }
+
+  /**
+   * An interior node of the trie; immutable
+   */
+  static abstract class Node {
+    /**
+     * The slot the id would be in (a node to look in, an entry to check, or null)
+     */
+    abstract Object find(int hash, int shift, String id);
+
+    abstract Node put(int hash, int shift, Entry<String, Jsonable> entry);
+
+    /**
+     * Returns the node without the id, or null if it is empty; a node left holding a single entry is replaced by the
+     * entry, so the trie doesn't keep chains of nodes down to lone documents
+     */
+    abstract Object remove(int hash, int shift, String id);
+
+    abstract int slotCount();
+
+    abstract Object slot(int i);
+  }
+
+  /**
+   * Holds the slots in use among the 32 this level's bits select, in order
+   */
+  static final class BitmapNode extends Node {
+    final int bitmap;
+    final Object[] slots;
+
+    BitmapNode(int bitmap, Object[] slots) {
+      this.bitmap = bitmap;
+      this.slots = slots;
+    }
+
+    private int indexOf(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Object find(int hash, int shift, String id) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      return slots[indexOf(bit)];
+    }
+
+    @Override
+    Node put(int hash, int shift, Entry<String, Jsonable> entry) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      int index = indexOf(bit);
+      if ((bitmap & bit) == 0) {
+        Object[] newSlots = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, newSlots, 0, index);
+        newSlots[index] = entry;
+        System.arraycopy(slots, index, newSlots, index + 1, slots.length - index);
+        return new BitmapNode(bitmap | bit, newSlots);
+      }
+
+      Object[] newSlots = slots.clone();
+      newSlots[index] = InMemorySnapshot.put(slots[index], hash, shift + BITS, entry);
+      return new BitmapNode(bitmap, newSlots);
+    }
+
+    @Override
+    Object remove(int hash, int shift, String id) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      int index = indexOf(bit);
+      Object child = InMemorySnapshot.remove(slots[index], hash, shift + BITS, id);
+      if (child != null) {
+        Object[] newSlots = slots.clone();
+        newSlots[index] = child;
+        if (newSlots.length == 1 && !(child instanceof Node)) {
+          return child;
+        }
+        return new BitmapNode(bitmap, newSlots);
+      }
+
+      if (slots.length == 1) {
+        return null;
+      }
+      if (slots.length == 2) {
+        Object other = slots[1 - index];
+        if (!(other instanceof Node)) {
+          return other;
+        }
+      }
+      Object[] newSlots = new Object[slots.length - 1];
+      System.arraycopy(slots, 0, newSlots, 0, index);
+      System.arraycopy(slots, index + 1, newSlots, index, slots.length - index - 1);
+      return new BitmapNode(bitmap & ~bit, newSlots);
+    }
+
+    @Override
+    int slotCount() {
+      return slots.length;
+    }
+
+    @Override
+    Object slot(int i) {
+      return slots[i];
+    }
+  }
+
+  /**
+   * Entries whose ids have the same full hash; we have run out of bits to branch on
+   */
+  static final class CollisionNode extends Node {
+    final Object[] entries;
+
+    CollisionNode(Object[] entries) {
+      this.entries = entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int indexOf(String id) {
+      for (int i = 0; i < entries.length; i++) {
+        if (((Entry<String, Jsonable>) entries[i]).getKey().equals(id)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Object find(int hash, int shift, String id) {
+      int index = indexOf(id);
+      return index != -1 ? entries[index] : null;
+    }
+
+    @Override
+    Node put(int hash, int shift, Entry<String, Jsonable> entry) {
+      int index = indexOf(entry.getKey());
+      Object[] newEntries;
+      if (index != -1) {
+        newEntries = entries.clone();
+        newEntries[index] = entry;
+      } else {
+        newEntries = new Object[entries.length + 1];
+        System.arraycopy(entries, 0, newEntries, 0, entries.length);
+        newEntries[entries.length] = entry;
+      }
+      return new CollisionNode(newEntries);
+    }
+
+    @Override
+    Object remove(int hash, int shift, String id) {
+      int index = indexOf(id);
+      if (entries.length == 1) {
+        return null;
+      }
+      if (entries.length == 2) {
+        return entries[1 - index];
+      }
+      Object[] newEntries = new Object[entries.length - 1];
+      System.arraycopy(entries, 0, newEntries, 0, index);
+      System.arraycopy(entries, index + 1, newEntries, index, entries.length - index - 1);
+      return new CollisionNode(newEntries);
+    }
+
+    @Override
+    int slotCount() {
+      return entries.length;
+    }
+
+    @Override
+    Object slot(int i) {
+      return entries[i];
+    }
+  }
+
+  /**
+   * Walks the trie depth-first
+   */
+  static class EntryIterator extends AbstractIterator<Entry<String, Jsonable>> {
+    final Deque<Node> nodes = new ArrayDeque<Node>();
+    final Deque<Integer> indexes = new ArrayDeque<Integer>();
+    Iterator<Entry<String, Jsonable>> single;
+
+    @SuppressWarnings("unchecked")
+    EntryIterator(Object root) {
+      if (root instanceof Node) {
+        nodes.push((Node) root);
+        indexes.push(0);
+      } else if (root != null) {
+        single = Iterators.singletonIterator((Entry<String, Jsonable>) root);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected Entry<String, Jsonable> computeNext() {
+      if (single != null) {
+        return single.hasNext() ? single.next() : endOfData();
+      }
+      while (!nodes.isEmpty()) {
+        Node node = nodes.peek();
+        int index = indexes.pop();
+        if (index == node.slotCount()) {
+          nodes.pop();
+          continue;
+        }
+        indexes.push(index + 1);
+
+        Object slot = node.slot(index);
+        if (slot instanceof Node) {
+          nodes.push((Node) slot);
+          indexes.push(0);
+        } else {
+          return (Entry<String, Jsonable>) slot;
+        }
+      }
+      return endOfData();
+    }
+  }
+
+}
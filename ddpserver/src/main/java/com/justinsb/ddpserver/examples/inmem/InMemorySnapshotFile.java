@@ -0,0 +1,238 @@
+package com.justinsb.ddpserver.examples.inmem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.collect.Maps;
+import com.google.gson.JsonParser;
+import com.justinsb.ddpserver.Jsonable;
+import com.justinsb.ddpserver.LazyJsonable;
+
+/**
+ * Reads & writes the snapshot files of a durable {@link InMemoryStorage}: the contents of every collection, each with
+ * the change position it is as of.
+ *
+ * The format is a header, then for each collection its name, position and document count, then each document as its
+ * id and its JSON (each length-prefixed UTF-8); and a trailer, so a truncated file is detected. Files are written under
+ * a temporary name and renamed into place, so a snapshot file is always complete.
+ *
+ * We read a snapshot by memory-mapping it and walking the ids; each document is a {@link LazyJsonable} over its slice
+ * of the mapping, so nothing is parsed (or even copied onto the heap) until it is used. Adding a document to a client,
+ * or writing it to a later snapshot, only needs its bytes; matching a selector, sorting, projecting, computing the
+ * invalidation keys of a write that fine-grained subscriptions watch, or diffing against a later version parses it.
+ *
+ */
+public class InMemorySnapshotFile {
+
+  static final int MAGIC = 0x44445053;
+
+  /**
+   * Version 1 used DataOutput's modified UTF-8 for names & ids, and is read by parsing every document
+   */
+  static final int VERSION_1 = 1;
+  static final int VERSION = 2;
+
+  /**
+   * We map the file in regions of (at most) this size, as a single mapping is limited to 2GB
+   */
+  static final long REGION_SIZE = 1L << 30;
+
+  static String fileName(long segment) {
+    return String.format("snapshot-%016d.snap", segment);
+  }
+
+  /**
+   * The segment number a snapshot file names, or -1 if it isn't one
+   */
+  static long parseSegment(String fileName) {
+    if (!fileName.startsWith("snapshot-") || !fileName.endsWith(".snap")) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(fileName.substring(9, fileName.length() - 5));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Writes the collections to the file, durably
+   */
+  public static void write(File file, Map<String, InMemorySnapshot> collections) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(tmp)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1024 * 1024));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(collections.size());
+      for (Entry<String, InMemorySnapshot> collection : collections.entrySet()) {
+        InMemorySnapshot snapshot = collection.getValue();
+        writeString(out, collection.getKey());
+        out.writeLong(snapshot.getPosition());
+        out.writeInt(snapshot.size());
+        for (Entry<String, Jsonable> entry : snapshot.getItems()) {
+          // Documents we loaded lazily are copied straight from their mapping, without being parsed
+          byte[] json = entry.getValue().toUtf8();
+          writeString(out, entry.getKey());
+          out.writeInt(json.length);
+          out.write(json);
+        }
+      }
+      out.writeInt(MAGIC);
+      out.flush();
+      fos.getChannel().force(true);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+
+  /**
+   * Reads the file, passing each document to the handler (with its collection's position); returns the position of
+   * every collection, including empty ones
+   */
+  public static Map<String, Long> read(File file, InMemoryLog.RecordHandler handler) throws IOException {
+    Map<String, Long> positions = Maps.newLinkedHashMap();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // The mappings stay valid after the channel is closed
+      MappedReader in = new MappedReader(channel);
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a snapshot file: " + file);
+      }
+      int version = in.readInt();
+      if (version == VERSION_1) {
+        return readVersion1(file, handler);
+      }
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot version " + version + ": " + file);
+      }
+
+      int collectionCount = in.readInt();
+      for (int i = 0; i < collectionCount; i++) {
+        String collectionName = in.readString();
+        long position = in.readLong();
+        int count = in.readInt();
+        positions.put(collectionName, position);
+        for (int j = 0; j < count; j++) {
+          String id = in.readString();
+          ByteBuffer json = in.readSlice(in.readInt());
+          handler.put(collectionName, position, id, new LazyJsonable(json));
+        }
+      }
+
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Snapshot file is corrupt: " + file);
+      }
+    }
+    return positions;
+  }
+
+  private static Map<String, Long> readVersion1(File file, InMemoryLog.RecordHandler handler) throws IOException {
+    Map<String, Long> positions = Maps.newLinkedHashMap();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024))) {
+      // Skip the header, which we have already checked
+      in.readInt();
+      in.readInt();
+
+      JsonParser parser = new JsonParser();
+      int collectionCount = in.readInt();
+      for (int i = 0; i < collectionCount; i++) {
+        String collectionName = in.readUTF();
+        long position = in.readLong();
+        int count = in.readInt();
+        positions.put(collectionName, position);
+        for (int j = 0; j < count; j++) {
+          String id = in.readUTF();
+          byte[] json = new byte[in.readInt()];
+          in.readFully(json);
+          Jsonable document = Jsonable.fromJson(parser.parse(new String(json, StandardCharsets.UTF_8)));
+          handler.put(collectionName, position, id, document);
+        }
+      }
+
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Snapshot file is corrupt: " + file);
+      }
+    }
+    return positions;
+  }
+
+  /**
+   * Reads a file sequentially through memory mappings, mapping a new region whenever a read runs past the current one
+   */
+  static class MappedReader {
+    final FileChannel channel;
+    final long size;
+
+    long offset;
+    MappedByteBuffer region;
+    long regionStart;
+
+    MappedReader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+    }
+
+    /**
+     * Returns the index in the current region of the next length bytes, mapping a new region if needed
+     */
+    private int advance(int length) throws IOException {
+      if (length < 0 || offset + length > size) {
+        throw new IOException("Snapshot file is truncated or corrupt at " + offset);
+      }
+      if (region == null || offset + length > regionStart + region.limit()) {
+        regionStart = offset;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(size - offset, REGION_SIZE));
+      }
+      int index = (int) (offset - regionStart);
+      offset += length;
+      return index;
+    }
+
+    int readInt() throws IOException {
+      int index = advance(4);
+      return region.getInt(index);
+    }
+
+    long readLong() throws IOException {
+      int index = advance(8);
+      return region.getLong(index);
+    }
+
+    String readString() throws IOException {
+      int length = readInt();
+      int index = advance(length);
+      byte[] utf8 = new byte[length];
+      region.get(index, utf8);
+      return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A view of the next length bytes (read-only, as the mapping is), valid for as long as it is referenced
+     */
+    ByteBuffer readSlice(int length) throws IOException {
+      int index = advance(length);
+      return region.slice(index, length);
+    }
+  }
+
+}
@@ -1,30 +1,313 @@
 package com.justinsb.ddpserver.examples.inmem;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.justinsb.ddpserver.DdpSession;
 import com.justinsb.ddpserver.Jsonable;
+import com.justinsb.ddpserver.Selector;
 import com.justinsb.ddpserver.Storage;
+import com.justinsb.ddpserver.StorageChange;
 
-public class InMemoryStorage implements Storage {
+/**
+ * Storage that keeps every collection in memory.
+ *
+ * By default nothing is persisted. A durable storage (see {@link #InMemoryStorage(File)}) logs each write to an
+ * {@link InMemoryLog} and syncs it before the method returns, so a write is durable before it is acknowledged;
+ * concurrent methods share fsyncs. The log is compacted by writing a snapshot of every collection (periodically, and on
+ * {@link #snapshot}), and on startup we load the latest snapshot and replay the log after it.
+ *
+ * A write is only published to queries and the change feed (and so to subscriptions) once the log has been synced past
+ * it, so no client sees a write that a crash could lose.
+ *
+ */
+public class InMemoryStorage implements Storage, Closeable {
 
   private static final Logger log = LoggerFactory.getLogger(InMemoryStorage.class);
 
   final Map<String, InMemoryCollection> collections = Maps.newHashMap();
 
+  /**
+   * Where we keep the log & snapshots; null if we aren't durable
+   */
+  final File dataDir;
+  final InMemoryLog wal;
+
+  /**
+   * Snapshot once the log has grown by this many bytes, or once this long has passed since the last snapshot (if the
+   * log has grown at all)
+   */
+  long snapshotLogBytes = 256L * 1024 * 1024;
+  long snapshotIntervalMillis = TimeUnit.MINUTES.toMillis(10);
+
+  /**
+   * The size of the log (in bytes appended) and the time, as of the last snapshot
+   */
+  long lastSnapshotAppended;
+  long lastSnapshotNanos = System.nanoTime();
+
+  final ScheduledExecutorService snapshotExecutor;
+
+  static final long SNAPSHOT_CHECK_MILLIS = 10000;
+
+  public InMemoryStorage() {
+    this.dataDir = null;
+    this.wal = null;
+    this.snapshotExecutor = null;
+  }
+
+  /**
+   * A durable storage, kept in the directory; recovers the collections from what is there
+   */
+  public InMemoryStorage(File dataDir) throws IOException {
+    this.dataDir = dataDir;
+    if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+      throw new IOException("Unable to create data directory: " + dataDir);
+    }
+
+    // Log to a new segment; we replay (and then delete) the existing ones
+    long lastSegment = 0;
+    for (File file : listFiles()) {
+      lastSegment = Math.max(lastSegment, InMemoryLog.parseSegment(file.getName()));
+      lastSegment = Math.max(lastSegment, InMemorySnapshotFile.parseSegment(file.getName()));
+    }
+    this.wal = new InMemoryLog(dataDir, lastSegment + 1);
+
+    recover(lastSegment + 1);
+
+    this.snapshotExecutor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("inmem-snapshot-%d").setDaemon(true).build());
+    this.snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          maybeSnapshot();
+        } catch (Exception e) {
+          log.error("Error writing snapshot", e);
+        }
+      }
+    }, SNAPSHOT_CHECK_MILLIS, SNAPSHOT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public void setSnapshotLogBytes(long snapshotLogBytes) {
+    this.snapshotLogBytes = snapshotLogBytes;
+  }
+
+  public void setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+    this.snapshotIntervalMillis = snapshotIntervalMillis;
+  }
+
+  private File[] listFiles() throws IOException {
+    File[] files = dataDir.listFiles();
+    if (files == null) {
+      throw new IOException("Unable to list data directory: " + dataDir);
+    }
+    return files;
+  }
+
+  /**
+   * Loads the latest snapshot, and replays the log segments before the given (new) one
+   */
+  private void recover(long newSegment) throws IOException {
+    long startNanos = System.nanoTime();
+
+    long snapshotSegment = -1;
+    List<Long> segments = Lists.newArrayList();
+    for (File file : listFiles()) {
+      String name = file.getName();
+      if (name.endsWith(".tmp")) {
+        // An interrupted snapshot
+        file.delete();
+        continue;
+      }
+      snapshotSegment = Math.max(snapshotSegment, InMemorySnapshotFile.parseSegment(name));
+      long segment = InMemoryLog.parseSegment(name);
+      if (segment != -1 && segment < newSegment) {
+        segments.add(segment);
+      }
+    }
+    Collections.sort(segments);
+
+    final Map<String, Map<String, Jsonable>> documents = Maps.newHashMap();
+    final Map<String, Long> positions = Maps.newHashMap();
+
+    InMemoryLog.RecordHandler handler = new InMemoryLog.RecordHandler() {
+      @Override
+      public void put(String collectionName, long position, String id, Jsonable document) {
+        if (apply(collectionName, position)) {
+          documents.get(collectionName).put(id, document);
+        }
+      }
+
+      @Override
+      public void remove(String collectionName, long position, String id) {
+        if (apply(collectionName, position)) {
+          documents.get(collectionName).remove(id);
+        }
+      }
+
+      /**
+       * Records that the collection is at the position, unless it is already past it (the write is in the snapshot)
+       */
+      private boolean apply(String collectionName, long position) {
+        Long current = positions.get(collectionName);
+        if (current != null && position <= current) {
+          return false;
+        }
+        positions.put(collectionName, position);
+        if (!documents.containsKey(collectionName)) {
+          documents.put(collectionName, Maps.<String, Jsonable> newHashMap());
+        }
+        return true;
+      }
+    };
+
+    if (snapshotSegment != -1) {
+      File file = new File(dataDir, InMemorySnapshotFile.fileName(snapshotSegment));
+      positions.putAll(InMemorySnapshotFile.read(file, new InMemoryLog.RecordHandler() {
+        @Override
+        public void put(String collectionName, long position, String id, Jsonable document) {
+          Map<String, Jsonable> collection = documents.get(collectionName);
+          if (collection == null) {
+            collection = Maps.newHashMap();
+            documents.put(collectionName, collection);
+          }
+          collection.put(id, document);
+        }
+
+        @Override
+        public void remove(String collectionName, long position, String id) {
+          throw new IllegalStateException();
+        }
+      }));
+      for (String collectionName : positions.keySet()) {
+        if (!documents.containsKey(collectionName)) {
+          documents.put(collectionName, Maps.<String, Jsonable> newHashMap());
+        }
+      }
+    }
+
+    for (int i = 0; i < segments.size(); i++) {
+      long segment = segments.get(i);
+      File file = new File(dataDir, InMemoryLog.segmentFileName(segment));
+      if (segment < snapshotSegment) {
+        // Covered by the snapshot; left over from a compaction that didn't finish cleaning up
+        file.delete();
+        continue;
+      }
+      long valid = InMemoryLog.replay(file, handler);
+      if (valid < file.length()) {
+        if (i != segments.size() - 1) {
+          throw new IllegalStateException("Log segment is corrupt: " + file);
+        }
+        // A write torn by a crash; it was never acknowledged
+        log.warn("Truncating log segment {} from {} to {} bytes", file, file.length(), valid);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+          channel.truncate(valid);
+        }
+      }
+    }
+
+    int documentCount = 0;
+    synchronized (collections) {
+      for (Entry<String, Map<String, Jsonable>> entry : documents.entrySet()) {
+        String collectionName = entry.getKey();
+        getCollection(collectionName).restore(InMemorySnapshot.of(positions.get(collectionName), entry.getValue()));
+        documentCount += entry.getValue().size();
+      }
+    }
+
+    log.info("Recovered {} documents in {} collections from {} in {} ms", documentCount, documents.size(), dataDir,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * Writes a snapshot of every collection, and deletes the log segments (and older snapshots) it covers
+   */
+  public synchronized void snapshot() throws IOException {
+    if (wal == null) {
+      throw new IllegalStateException("Storage is not durable");
+    }
+
+    long startNanos = System.nanoTime();
+    lastSnapshotAppended = wal.getAppended();
+    lastSnapshotNanos = startNanos;
+
+    // Every write in the older segments was applied to the latest contents before it was logged, so the snapshots
+    // include it (whether or not it has been published yet; the snapshot file is durable in itself)
+    long segment = wal.rotate();
+    Map<String, InMemorySnapshot> snapshots = Maps.newLinkedHashMap();
+    synchronized (collections) {
+      for (InMemoryCollection collection : collections.values()) {
+        snapshots.put(collection.getName(), collection.getLatestSnapshot());
+      }
+    }
+
+    InMemorySnapshotFile.write(new File(dataDir, InMemorySnapshotFile.fileName(segment)), snapshots);
+    syncDirectory();
+
+    for (File file : listFiles()) {
+      long logSegment = InMemoryLog.parseSegment(file.getName());
+      long snapshotSegment = InMemorySnapshotFile.parseSegment(file.getName());
+      if ((logSegment != -1 && logSegment < segment) || (snapshotSegment != -1 && snapshotSegment < segment)) {
+        file.delete();
+      }
+    }
+
+    log.info("Wrote snapshot {} in {} ms", segment, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+  }
+
+  private synchronized void maybeSnapshot() throws IOException {
+    long grown = wal.getAppended() - lastSnapshotAppended;
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSnapshotNanos);
+    if (grown >= snapshotLogBytes || (grown > 0 && elapsedMillis >= snapshotIntervalMillis)) {
+      snapshot();
+    }
+  }
+
+  /**
+   * Makes the renames in the data directory durable
+   */
+  private void syncDirectory() {
+    try (FileChannel channel = FileChannel.open(dataDir.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Not every platform can sync a directory
+      log.debug("Unable to sync data directory {}", dataDir, e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (wal != null) {
+      snapshotExecutor.shutdown();
+      wal.close();
+    }
+  }
+
   protected InMemoryCollection getCollection(String name) {
     synchronized (collections) {
       InMemoryCollection collection = collections.get(name);
       if (collection == null) {
-        collection = new InMemoryCollection(name);
+        collection = new InMemoryCollection(name, wal);
         collections.put(name, collection);
       }
       return collection;
@@ -32,11 +315,43 @@ public class InMemoryStorage implements Storage {
   }
 
   @Override
-  public Set<Entry<String, Jsonable>> query(String collectionName) {
+  public Iterable<Entry<String, Jsonable>> query(String collectionName) {
     InMemoryCollection collection = getCollection(collectionName);
     return collection.getItems();
   }
 
+  @Override
+  public Iterable<Entry<String, Jsonable>> query(String collectionName, Selector selector) {
+    InMemoryCollection collection = getCollection(collectionName);
+    return collection.query(selector);
+  }
+
+  /**
+   * Declares a secondary index on a field of the collection; see {@link InMemoryCollection#ensureIndex}
+   */
+  public void ensureIndex(String collectionName, String field, boolean sorted) {
+    getCollection(collectionName).ensureIndex(field, sorted);
+  }
+
+  @Override
+  public long getChangePosition(String collectionName) {
+    InMemoryCollection collection = getCollection(collectionName);
+    return collection.getChangePosition();
+  }
+
+  @Override
+  public List<StorageChange> getChanges(String collectionName, long afterPosition) {
+    InMemoryCollection collection = getCollection(collectionName);
+    return collection.getChanges(afterPosition);
+  }
+
+  /**
+   * The collection's current contents, with the change position they are as of
+   */
+  public InMemorySnapshot getSnapshot(String collectionName) {
+    return getCollection(collectionName).getSnapshot();
+  }
+
   @Override
   public JsonElement executeCollectionMethod(DdpSession session, String methodId, String collectionName,
       String collectionMethod, JsonArray params) {
@@ -59,6 +374,17 @@ public class InMemoryStorage implements Storage {
       throw new IllegalArgumentException();
     }
 
+    if (wal != null) {
+      // Publish & acknowledge only once the write is durable; a sync by a concurrent method may already have covered us
+      long position = collection.getLatestPosition();
+      try {
+        wal.sync();
+      } catch (IOException e) {
+        throw new IllegalStateException("Error writing log", e);
+      }
+      collection.publish(position);
+    }
+
     return result;
   }
 
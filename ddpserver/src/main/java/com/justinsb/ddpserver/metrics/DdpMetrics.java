@@ -0,0 +1,159 @@
+package com.justinsb.ddpserver.metrics;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.justinsb.ddpserver.DdpSession;
+
+/**
+ * Counters & histograms for the server internals; reported by {@link DdpMetricsServlet}.
+ * 
+ * Latencies are in microseconds.
+ *
+ */
+public class DdpMetrics {
+
+  public static final DdpMetrics DEFAULT = new DdpMetrics();
+
+  /**
+   * How many sessions we list individually, by merge-box size
+   */
+  static final int TOP_SESSIONS = 10;
+
+  /**
+   * The message types a client may send; the type is client-supplied, so anything else is counted as "unknown" rather
+   * than getting a counter of its own
+   */
+  static final Set<String> INBOUND_TYPES = ImmutableSet.of("connect", "ping", "pong", "sub", "unsub", "method");
+
+  final ConcurrentMap<String, Counter> messagesIn = Maps.newConcurrentMap();
+  final ConcurrentMap<String, Counter> messagesOut = Maps.newConcurrentMap();
+
+  public final Counter bytesSent = new Counter();
+
+  /**
+   * Time spent in the data source executing a method
+   */
+  public final Histogram methodExecution = new Histogram();
+
+  /**
+   * Time from a change notification until a subscription has sent the change
+   */
+  public final Histogram changeToSent = new Histogram();
+
+  /**
+   * Time a method waits for its writes to be sent to all affected subscriptions, before we send "updated"
+   */
+  public final Histogram writeFenceWait = new Histogram();
+
+  final ConcurrentMap<String, Gauge> gauges = Maps.newConcurrentMap();
+
+  final Set<DdpSession> sessions = Sets.newConcurrentHashSet();
+
+  private static Counter getCounter(ConcurrentMap<String, Counter> counters, String type) {
+    if (type == null) {
+      type = "unknown";
+    }
+    Counter counter = counters.get(type);
+    if (counter == null) {
+      counter = new Counter();
+      Counter existing = counters.putIfAbsent(type, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  public Counter messagesIn(String msg) {
+    if (msg != null && !INBOUND_TYPES.contains(msg)) {
+      msg = null;
+    }
+    return getCounter(messagesIn, msg);
+  }
+
+  public Counter messagesOut(String msg) {
+    return getCounter(messagesOut, msg);
+  }
+
+  public void registerGauge(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  public void sessionOpened(DdpSession session) {
+    sessions.add(session);
+  }
+
+  public void sessionClosed(DdpSession session) {
+    sessions.remove(session);
+  }
+
+  private static JsonObject toJson(Map<String, Counter> counters) {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      json.addProperty(entry.getKey(), entry.getValue().get());
+    }
+    return json;
+  }
+
+  public JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    json.add("messagesIn", toJson(messagesIn));
+    json.add("messagesOut", toJson(messagesOut));
+    json.addProperty("bytesSent", bytesSent.get());
+    json.add("methodExecutionMicros", methodExecution.toJson());
+    json.add("changeToSentMicros", changeToSent.toJson());
+    json.add("writeFenceWaitMicros", writeFenceWait.toJson());
+
+    JsonObject gaugesJson = new JsonObject();
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      gaugesJson.addProperty(entry.getKey(), entry.getValue().getValue());
+    }
+    json.add("gauges", gaugesJson);
+
+    json.add("sessions", sessionsToJson());
+    return json;
+  }
+
+  private JsonObject sessionsToJson() {
+    List<Map.Entry<DdpSession, Integer>> documentCounts = Lists.newArrayList();
+    long total = 0;
+    for (DdpSession session : sessions) {
+      int count = session.getMergeBox().getDocumentCount();
+      documentCounts.add(Maps.immutableEntry(session, count));
+      total += count;
+    }
+
+    Collections.sort(documentCounts, new Comparator<Map.Entry<DdpSession, Integer>>() {
+      @Override
+      public int compare(Map.Entry<DdpSession, Integer> a, Map.Entry<DdpSession, Integer> b) {
+        return Integer.compare(b.getValue(), a.getValue());
+      }
+    });
+
+    JsonObject json = new JsonObject();
+    json.addProperty("count", documentCounts.size());
+    json.addProperty("mergeBoxDocuments", total);
+    json.addProperty("mergeBoxDocumentsMax", documentCounts.isEmpty() ? 0 : documentCounts.get(0).getValue());
+
+    JsonObject largest = new JsonObject();
+    for (Map.Entry<DdpSession, Integer> entry : documentCounts.subList(0,
+        Math.min(TOP_SESSIONS, documentCounts.size()))) {
+      DdpSession session = entry.getKey();
+      String id = session.getSessionId() != null ? session.getSessionId() : session.toString();
+      largest.addProperty(id, entry.getValue());
+    }
+    json.add("largestMergeBoxes", largest);
+    return json;
+  }
+
+}
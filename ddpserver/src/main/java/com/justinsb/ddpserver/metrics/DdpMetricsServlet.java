@@ -0,0 +1,32 @@
+package com.justinsb.ddpserver.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Reports {@link DdpMetrics} as JSON
+ */
+public class DdpMetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  final DdpMetrics metrics;
+
+  public DdpMetricsServlet(DdpMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    resp.setContentType("application/json");
+    resp.setCharacterEncoding("UTF-8");
+    resp.getWriter().write(new GsonBuilder().setPrettyPrinting().create().toJson(metrics.toJson()));
+  }
+
+}
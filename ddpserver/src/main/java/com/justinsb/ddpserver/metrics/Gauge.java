@@ -0,0 +1,8 @@
+package com.justinsb.ddpserver.metrics;
+
+/**
+ * A value that is read when the metrics are reported
+ */
+public interface Gauge {
+  long getValue();
+}
@@ -0,0 +1,99 @@
+package com.justinsb.ddpserver.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A latency histogram, in microseconds, with power-of-two buckets.
+ * 
+ * Percentiles are reported as the upper bound of the bucket they fall in, so they are accurate to within a factor of
+ * two; that is plenty to spot a problem, and recording is a couple of atomic adds.
+ *
+ */
+public class Histogram {
+  static final int BUCKETS = 64;
+
+  /**
+   * Bucket i holds values in [2^(i-1), 2^i); bucket 0 holds 0
+   */
+  final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  final LongAdder count = new LongAdder();
+  final LongAdder sum = new LongAdder();
+  final AtomicLong max = new AtomicLong();
+
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(micros));
+    count.increment();
+    sum.add(micros);
+    while (true) {
+      long current = max.get();
+      if (micros <= current || max.compareAndSet(current, micros)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Records the time since startNanos (from {@link System#nanoTime()})
+   */
+  public void recordSince(long startNanos) {
+    record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : sum.sum() / count;
+  }
+
+  /**
+   * Returns (an upper bound on) the value below which the given fraction of values fall
+   */
+  public long getPercentile(double fraction) {
+    long total = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long threshold = (long) Math.ceil(total * fraction);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= threshold) {
+        return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+      }
+    }
+    return getMax();
+  }
+
+  public JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    json.addProperty("count", getCount());
+    json.addProperty("mean", getMean());
+    json.addProperty("p50", getPercentile(0.5));
+    json.addProperty("p90", getPercentile(0.9));
+    json.addProperty("p99", getPercentile(0.99));
+    json.addProperty("max", getMax());
+    return json;
+  }
+
+}
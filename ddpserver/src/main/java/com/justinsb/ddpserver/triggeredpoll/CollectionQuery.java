@@ -0,0 +1,236 @@
+package com.justinsb.ddpserver.triggeredpoll;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.justinsb.ddpserver.Jsonable;
+import com.justinsb.ddpserver.Projection;
+import com.justinsb.ddpserver.Query;
+import com.justinsb.ddpserver.Selector;
+import com.justinsb.ddpserver.Sort;
+import com.justinsb.ddpserver.Storage;
+import com.justinsb.ddpserver.StorageChange;
+
+/**
+ * A query over a storage collection, optionally filtered by a {@link Selector} (e.g. {"listId": "abc"}), sorted &
+ * limited (e.g. {"sort": {"createdAt": -1}, "limit": 50}), and projected (e.g. {"fields": {"name": 1}}).
+ *
+ */
+public class CollectionQuery implements Query {
+  final Storage storage;
+  final String collectionName;
+  final Selector selector;
+  final Sort sort;
+  final int limit;
+  final Projection projection;
+
+  public CollectionQuery(Storage storage, String collectionName, Selector selector) {
+    this(storage, collectionName, selector, null, 0, null);
+  }
+
+  public CollectionQuery(Storage storage, String collectionName, Selector selector, Sort sort, int limit) {
+    this(storage, collectionName, selector, sort, limit, null);
+  }
+
+  public CollectionQuery(Storage storage, String collectionName, Selector selector, Sort sort, int limit,
+      Projection projection) {
+    this.storage = storage;
+    this.collectionName = collectionName;
+    this.selector = selector;
+    if (limit > 0 && sort == null) {
+      // A limit needs a stable order
+      sort = Sort.BY_ID;
+    }
+    this.sort = sort;
+    this.limit = limit;
+    this.projection = projection;
+  }
+
+  /**
+   * Builds a query from the subscription params; the first param, if an object, is a selector, and the second the
+   * options (sort, limit and fields)
+   */
+  public static CollectionQuery fromParams(Storage storage, String collectionName, JsonArray params) {
+    Selector selector = null;
+    if (params != null && params.size() >= 1 && params.get(0).isJsonObject()) {
+      selector = Selector.parse(params.get(0).getAsJsonObject());
+      if (selector.isAll()) {
+        selector = null;
+      }
+    }
+
+    Sort sort = null;
+    int limit = 0;
+    Projection projection = null;
+    if (params != null && params.size() >= 2 && params.get(1).isJsonObject()) {
+      JsonObject options = params.get(1).getAsJsonObject();
+      for (Entry<String, JsonElement> option : options.entrySet()) {
+        if (option.getKey().equals("sort")) {
+          sort = Sort.parse(option.getValue());
+        } else if (option.getKey().equals("limit")) {
+          limit = option.getValue().getAsInt();
+          if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+          }
+        } else if (option.getKey().equals("fields")) {
+          projection = Projection.parse(option.getValue().getAsJsonObject());
+        } else {
+          throw new IllegalArgumentException("Unsupported option: " + option.getKey());
+        }
+      }
+    }
+    return new CollectionQuery(storage, collectionName, selector, sort, limit, projection);
+  }
+
+  @Override
+  public String getCollectionName() {
+    return collectionName;
+  }
+
+  /**
+   * The invalidation keys that cover every write that could change our results.
+   * 
+   * For an equality (or $in) on a field, the keys for its values are enough: any document entering or leaving the
+   * results had or has one of them. One such condition covers an $and; an $or needs one for each branch.
+   * 
+   * Anything else watches the whole collection; unless we only send some fields, in which case we watch for
+   * documents being added or removed, and for changes to the fields we send, select on or sort by.
+   */
+  public List<String> getInvalidationKeys() {
+    List<String> keys = null;
+    if (selector != null) {
+      keys = getInvalidationKeys(selector);
+    }
+    if (keys == null && projection != null && projection.getIncludedFields() != null) {
+      Set<String> fields = Sets.newLinkedHashSet(projection.getIncludedFields());
+      if (selector != null) {
+        selector.addFields(fields);
+      }
+      if (sort != null) {
+        sort.addFields(fields);
+      }
+
+      keys = Lists.newArrayList(InvalidationKeys.membership(collectionName));
+      for (String field : fields) {
+        keys.add(InvalidationKeys.fieldChanged(collectionName, field));
+      }
+    }
+    if (keys == null) {
+      keys = Lists.newArrayList(InvalidationKeys.collection(collectionName));
+    }
+    return keys;
+  }
+
+  private List<String> getInvalidationKeys(Selector selector) {
+    if (selector instanceof Selector.Condition) {
+      Selector.Condition condition = (Selector.Condition) selector;
+      Selector.Operator operator = condition.getOperator();
+      String field = condition.getField();
+      if ((operator != Selector.Operator.EQ && operator != Selector.Operator.IN) || field.indexOf('.') != -1) {
+        return null;
+      }
+
+      List<String> keys = Lists.newArrayList();
+      for (JsonElement value : condition.getValues()) {
+        // Writes only touch keys for primitive values (see TriggerDdpDataSource)
+        if (!value.isJsonPrimitive()) {
+          return null;
+        }
+        if (field.equals("_id")) {
+          keys.add(InvalidationKeys.document(collectionName, value.getAsString()));
+        } else {
+          keys.add(InvalidationKeys.field(collectionName, field, value));
+        }
+      }
+      return keys;
+    }
+
+    if (selector instanceof Selector.And) {
+      List<String> best = null;
+      for (Selector child : ((Selector.And) selector).getChildren()) {
+        List<String> keys = getInvalidationKeys(child);
+        if (keys != null && (best == null || keys.size() < best.size())) {
+          best = keys;
+        }
+      }
+      return best;
+    }
+
+    if (selector instanceof Selector.Or) {
+      List<String> keys = Lists.newArrayList();
+      for (Selector child : ((Selector.Or) selector).getChildren()) {
+        List<String> childKeys = getInvalidationKeys(child);
+        if (childKeys == null) {
+          return null;
+        }
+        for (String key : childKeys) {
+          if (!keys.contains(key)) {
+            keys.add(key);
+          }
+        }
+      }
+      return keys;
+    }
+
+    return null;
+  }
+
+  @Override
+  public Iterable<Entry<String, Jsonable>> getItems() {
+    if (sort == null) {
+      return storage.query(collectionName, selector);
+    }
+    return storage.query(collectionName, selector, sort, limit);
+  }
+
+  @Override
+  public Iterable<Entry<String, Jsonable>> getItems(int count) {
+    return storage.query(collectionName, selector, sort != null ? sort : Sort.BY_ID, count);
+  }
+
+  @Override
+  public Sort getSort() {
+    return sort;
+  }
+
+  @Override
+  public int getLimit() {
+    return limit;
+  }
+
+  @Override
+  public Projection getProjection() {
+    return projection;
+  }
+
+  @Override
+  public boolean matches(String id, Jsonable document) {
+    if (selector == null) {
+      return true;
+    }
+    return selector.matches(id, document);
+  }
+
+  @Override
+  public long getChangePosition() {
+    return storage.getChangePosition(collectionName);
+  }
+
+  @Override
+  public List<StorageChange> getChanges(long afterPosition) {
+    return storage.getChanges(collectionName, afterPosition);
+  }
+
+  @Override
+  public String toString() {
+    return "Query:" + collectionName + (selector != null ? selector.toString() : "") + (sort != null ? sort : "")
+        + (limit > 0 ? " limit " + limit : "") + (projection != null ? projection : "");
+  }
+
+}
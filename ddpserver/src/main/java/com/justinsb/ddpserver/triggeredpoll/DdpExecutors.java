@@ -2,9 +2,29 @@ package com.justinsb.ddpserver.triggeredpoll;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class DdpExecutors {
 
-  public static final Executor DEFAULT_EXECUTOR = Executors.newCachedThreadPool();
+  /**
+   * Runs subscription refreshes, with bounded parallelism and per-session ordering
+   */
+  public static final DdpScheduler DEFAULT_SCHEDULER = new FairDdpScheduler(Math.max(2, Runtime.getRuntime()
+      .availableProcessors()));
+
+  /**
+   * For delayed work (e.g. coalesced refreshes); tasks should be short and hand off to a scheduler
+   */
+  public static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("ddp-timer-%d").setDaemon(true).build());
+
+  /**
+   * For transport writes that can only be made blocking; a virtual thread per write, so a slow client holds up only
+   * its own writes
+   */
+  public static final Executor WRITER = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ddp-write-", 0)
+      .factory());
 
 }
@@ -0,0 +1,18 @@
+package com.justinsb.ddpserver.triggeredpoll;
+
+/**
+ * Runs background work (subscription refreshes and pushes).
+ * 
+ * Tasks with the same key (e.g. the same session) run one at a time, in the order they were submitted.
+ *
+ */
+public interface DdpScheduler {
+
+  void execute(Object key, Runnable task);
+
+  /**
+   * The number of tasks submitted but not yet started
+   */
+  long getQueueDepth();
+
+}
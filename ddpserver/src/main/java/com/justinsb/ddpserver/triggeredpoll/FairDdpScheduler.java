@@ -0,0 +1,198 @@
+package com.justinsb.ddpserver.triggeredpoll;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link DdpScheduler} with a fixed number of threads.
+ * 
+ * Each key has its own lane of tasks. A lane runs one task per turn and then goes to the back of the line, so a key
+ * with a lot of work can't starve the others, and a key's tasks never run concurrently.
+ *
+ */
+public class FairDdpScheduler implements DdpScheduler {
+
+  private static final Logger log = LoggerFactory.getLogger(FairDdpScheduler.class);
+
+  final ExecutorService executor;
+  final int parallelism;
+  final int tasksPerTurn;
+
+  final ConcurrentMap<Object, Lane> lanes = Maps.newConcurrentMap();
+
+  final AtomicLong queueDepth = new AtomicLong();
+  final AtomicLong completedTasks = new AtomicLong();
+  final AtomicLong totalWaitNanos = new AtomicLong();
+  final AtomicLong maxWaitNanos = new AtomicLong();
+  final AtomicLong totalRunNanos = new AtomicLong();
+
+  public FairDdpScheduler(int parallelism) {
+    this(new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("ddp-worker-%d").setDaemon(true).build()), parallelism, 1);
+  }
+
+  /**
+   * @param parallelism
+   *          for reporting only; -1 if unbounded
+   * @param tasksPerTurn
+   *          the number of tasks a lane runs before going to the back of the line
+   */
+  protected FairDdpScheduler(ExecutorService executor, int parallelism, int tasksPerTurn) {
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.tasksPerTurn = tasksPerTurn;
+  }
+
+  static class Task {
+    final Runnable runnable;
+    final long enqueuedNanos;
+
+    Task(Runnable runnable, long enqueuedNanos) {
+      this.runnable = runnable;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+  }
+
+  class Lane implements Runnable {
+    final Object key;
+    final Queue<Task> tasks = new ArrayDeque<Task>();
+    boolean scheduled;
+    boolean removed;
+
+    Lane(Object key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < tasksPerTurn; i++) {
+        Task task;
+        synchronized (this) {
+          task = tasks.poll();
+        }
+        if (task == null) {
+          break;
+        }
+        runTask(task);
+      }
+
+      synchronized (this) {
+        if (tasks.isEmpty()) {
+          scheduled = false;
+          removed = true;
+          lanes.remove(key, this);
+        } else {
+          // Back of the line, so other keys get a turn
+          executor.execute(this);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void execute(Object key, Runnable runnable) {
+    Task task = new Task(runnable, System.nanoTime());
+    queueDepth.incrementAndGet();
+
+    while (true) {
+      Lane lane = lanes.get(key);
+      if (lane == null) {
+        lane = new Lane(key);
+        Lane existing = lanes.putIfAbsent(key, lane);
+        if (existing != null) {
+          lane = existing;
+        }
+      }
+
+      synchronized (lane) {
+        if (lane.removed) {
+          // Lost a race with the lane emptying; pick up the new lane
+          continue;
+        }
+        lane.tasks.add(task);
+        if (!lane.scheduled) {
+          lane.scheduled = true;
+          executor.execute(lane);
+        }
+        return;
+      }
+    }
+  }
+
+  void runTask(Task task) {
+    long startNanos = System.nanoTime();
+    queueDepth.decrementAndGet();
+
+    long waitNanos = startNanos - task.enqueuedNanos;
+    totalWaitNanos.addAndGet(waitNanos);
+    while (true) {
+      long max = maxWaitNanos.get();
+      if (waitNanos <= max || maxWaitNanos.compareAndSet(max, waitNanos)) {
+        break;
+      }
+    }
+
+    try {
+      task.runnable.run();
+    } catch (Throwable t) {
+      log.warn("Error running task", t);
+    }
+
+    totalRunNanos.addAndGet(System.nanoTime() - startNanos);
+    completedTasks.incrementAndGet();
+  }
+
+  @Override
+  public long getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  public long getCompletedTasks() {
+    return completedTasks.get();
+  }
+
+  /**
+   * Mean time tasks spent queued before starting
+   */
+  public long getMeanWaitMicros() {
+    long completed = completedTasks.get();
+    return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / completed);
+  }
+
+  public long getMaxWaitMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+  }
+
+  public long getMeanRunMicros() {
+    long completed = completedTasks.get();
+    return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalRunNanos.get() / completed);
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @Override
+  public String toString() {
+    return "FairDdpScheduler [parallelism=" + getParallelism() + ", queueDepth=" + getQueueDepth() + ", completed="
+        + getCompletedTasks() + ", meanWaitMicros=" + getMeanWaitMicros() + "]";
+  }
+
+}
@@ -1,39 +1,126 @@
 package com.justinsb.ddpserver.triggeredpoll;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
+/**
+ * In-memory invalidation system, without locks.
+ *
+ * Each key has an atomic position and a concurrent skip-list of watchers ordered by the position they are waiting for,
+ * so writes to unrelated keys never contend, and a write only touches the watchers that fire.
+ *
+ */
 public class InMemoryInvalidationSystem implements InvalidationSystem {
 
   private static final Logger log = LoggerFactory.getLogger(InMemoryInvalidationSystem.class);
 
-  final Map<String, WatchableValue> positions = Maps.newHashMap();
+  static class WatcherKey implements Comparable<WatcherKey> {
+    final long minPosition;
+    final long sequence;
 
-  WatchableValue getWatchable(String key) {
-    synchronized (positions) {
-      WatchableValue position = positions.get(key);
-      if (position == null) {
-        position = new WatchableValue(0);
-        positions.put(key, position);
+    WatcherKey(long minPosition, long sequence) {
+      this.minPosition = minPosition;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(WatcherKey o) {
+      int c = Long.compare(minPosition, o.minPosition);
+      if (c != 0) {
+        return c;
+      }
+      return Long.compare(sequence, o.sequence);
+    }
+  }
+
+  static class KeyPosition {
+    final AtomicLong position = new AtomicLong();
+    final AtomicLong nextSequence = new AtomicLong();
+    final ConcurrentSkipListMap<WatcherKey, SettableFuture<Long>> watchers = new ConcurrentSkipListMap<>();
+
+    ListenableFuture<Long> waitFor(long minPosition) {
+      long current = position.get();
+      if (current >= minPosition) {
+        SettableFuture<Long> future = SettableFuture.create();
+        future.set(current);
+        return future;
+      }
+
+      final WatcherKey key = new WatcherKey(minPosition, nextSequence.incrementAndGet());
+      final SettableFuture<Long> future = SettableFuture.create();
+      watchers.put(key, future);
+
+      // Don't leak watchers that are cancelled before they fire
+      future.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (future.isCancelled()) {
+            watchers.remove(key);
+          }
+        }
+      }, MoreExecutors.directExecutor());
+
+      // The position may have moved before we were visible to the notifier; whoever removes the entry completes it
+      current = position.get();
+      if (current >= minPosition && watchers.remove(key) != null) {
+        future.set(current);
+      }
+      return future;
+    }
+
+    long increment() {
+      long next = position.incrementAndGet();
+      fire();
+      return next;
+    }
+
+    private void fire() {
+      while (true) {
+        Map.Entry<WatcherKey, SettableFuture<Long>> first = watchers.firstEntry();
+        if (first == null) {
+          return;
+        }
+        long current = position.get();
+        if (first.getKey().minPosition > current) {
+          return;
+        }
+        if (watchers.remove(first.getKey()) != null) {
+          first.getValue().set(current);
+        }
       }
-      return position;
     }
   }
 
+  final ConcurrentMap<String, KeyPosition> positions = Maps.newConcurrentMap();
+
+  KeyPosition getKeyPosition(String key) {
+    KeyPosition position = positions.get(key);
+    if (position == null) {
+      position = new KeyPosition();
+      KeyPosition existing = positions.putIfAbsent(key, position);
+      if (existing != null) {
+        position = existing;
+      }
+    }
+    return position;
+  }
+
   /* (non-Javadoc)
    * @see com.justinsb.ddpserver.triggeredpoll.InvalidationSystem#waitForPosition(java.lang.String, long)
    */
   @Override
   public ListenableFuture<Long> waitForPosition(String key, long minPosition) {
-    synchronized (this) {
-      WatchableValue position = getWatchable(key);
-      return position.waitForMin(minPosition);
-    }
+    return getKeyPosition(key).waitFor(minPosition);
   }
 
   /* (non-Javadoc)
@@ -41,15 +128,9 @@ public class InMemoryInvalidationSystem implements InvalidationSystem {
    */
   @Override
   public long notifyChange(String key) {
-    synchronized (this) {
-      WatchableValue position = getWatchable(key);
-      long current = position.getValue();
-      long next = current + 1;
-      log.debug("Notify change: {}={}", key, next);
-      position.setValue(next);
-
-      return next;
-    }
+    long next = getKeyPosition(key).increment();
+    log.debug("Notify change: {}={}", key, next);
+    return next;
   }
 
   /* (non-Javadoc)
@@ -57,10 +138,11 @@ public class InMemoryInvalidationSystem implements InvalidationSystem {
    */
   @Override
   public long getPosition(String key) {
-    synchronized (this) {
-      WatchableValue position = getWatchable(key);
-      return position.getValue();
+    KeyPosition position = positions.get(key);
+    if (position == null) {
+      return 0;
     }
+    return position.position.get();
   }
 
 }
@@ -0,0 +1,86 @@
+package com.justinsb.ddpserver.triggeredpoll;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Builds hierarchical invalidation keys.
+ * 
+ * <ul>
+ * <li>collection: any write to the collection</li>
+ * <li>collection/#docId: writes to a single document</li>
+ * <li>collection/."field"=value: writes to documents whose field had or now has the value (the field name is
+ * JSON-encoded, and so is the value, with numbers in canonical form)</li>
+ * <li>collection/*: documents being added or removed</li>
+ * <li>collection/*.field: writes that change the (top-level) field of a document, or add or remove a document</li>
+ * </ul>
+ * 
+ * The character after the slash says what kind of key it is, so no id or field name can make one kind of key look
+ * like another. A slash (or percent sign) in the collection name is escaped, so the first slash in a key always ends
+ * the collection; see {@link #collectionKeyOf}.
+ *
+ */
+public class InvalidationKeys {
+
+  public static String collection(String collectionName) {
+    if (collectionName.indexOf('/') == -1 && collectionName.indexOf('%') == -1) {
+      return collectionName;
+    }
+    return collectionName.replace("%", "%25").replace("/", "%2F");
+  }
+
+  public static String document(String collectionName, String id) {
+    return prefix(collectionName) + "#" + id;
+  }
+
+  public static String field(String collectionName, String field, JsonElement value) {
+    return prefix(collectionName) + "." + new JsonPrimitive(field) + "=" + canonicalize(value);
+  }
+
+  public static String membership(String collectionName) {
+    return prefix(collectionName) + "*";
+  }
+
+  public static String fieldChanged(String collectionName, String field) {
+    return prefix(collectionName) + "*." + field;
+  }
+
+  /**
+   * The prefix shared by all the fine-grained keys of a collection
+   */
+  public static String prefix(String collectionName) {
+    return collection(collectionName) + "/";
+  }
+
+  /**
+   * The key for the whole collection that the key belongs to (the key itself, if it is one)
+   */
+  public static String collectionKeyOf(String key) {
+    int slash = key.indexOf('/');
+    return slash == -1 ? key : key.substring(0, slash);
+  }
+
+  /**
+   * True if the key is finer than a whole collection
+   */
+  public static boolean isFineGrained(String key) {
+    return key.indexOf('/') != -1;
+  }
+
+  /**
+   * Encodes a value so that values a selector treats as equal (see {@link com.justinsb.ddpserver.JsonValues#equal})
+   * encode the same: numbers compare as doubles, so 3, 3.0 and 3e0 are all "3.0"
+   */
+  static String canonicalize(JsonElement value) {
+    if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+      double d = value.getAsDouble();
+      if (d == 0) {
+        // -0.0 == 0.0
+        d = 0;
+      }
+      return Double.toString(d);
+    }
+    return value.toString();
+  }
+
+}
@@ -0,0 +1,406 @@
+package com.justinsb.ddpserver.triggeredpoll;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.justinsb.ddpserver.Jsonable;
+import com.justinsb.ddpserver.Projection;
+import com.justinsb.ddpserver.Query;
+import com.justinsb.ddpserver.Sort;
+import com.justinsb.ddpserver.StorageChange;
+
+/**
+ * Runs a query once per invalidation, and pushes the results to every subscription with the same publication name
+ * and params.
+ * 
+ * We keep the current results, so that new subscriptions can be sent them without re-running the query. When the
+ * storage has a change feed we apply it to the results and push only the changes; otherwise (or if the feed has been
+ * truncated) we re-run the query and push the full results.
+ * 
+ * For a limited query we keep the results in a {@link TopNWindow}, and apply the feed to that, so each change costs
+ * only the documents entering or leaving the window.
+ * 
+ * If the query has a projection, the results hold only the projected fields (the window holds whole documents, so it
+ * can sort on any field), and changes that don't touch them are dropped, so subscriptions only see (and diff) the
+ * fields they send.
+ * 
+ * Refreshes can be coalesced: with a coalescing window, we refresh at most once per window, and each refresh jumps
+ * straight to the latest invalidation position (so every write in the window is covered by the write fence).
+ * 
+ * Refreshes run on the {@link DdpScheduler}, keyed by the multiplexer. The results are then pushed to each
+ * subscription as a separate task keyed by its session, so one slow session doesn't hold up the others, and each
+ * session sees its pushes in order.
+ * 
+ * The multiplexer is stopped when the last subscription detaches; it can't be restarted.
+ *
+ */
+public class ObserveMultiplexer {
+
+  private static final Logger log = LoggerFactory.getLogger(ObserveMultiplexer.class);
+
+  final TriggerDdpDataSource dataSource;
+  final String key;
+  final Query query;
+  final Projection projection;
+  final InvalidationSystem invalidationSystem;
+  final List<String> invalidationKeys;
+  final boolean useChangeFeed;
+  final long coalesceNanos;
+  final DdpScheduler scheduler;
+
+  final List<TriggerDdpSubscription> subscriptions = Lists.newArrayList();
+
+  /**
+   * The current query results, valid as of positions
+   */
+  Map<String, Jsonable> results;
+  Map<String, Long> positions;
+  long feedPosition = -1;
+
+  /**
+   * For limited queries, the window of results; null otherwise
+   */
+  final TopNWindow window;
+  long lastRefreshNanos;
+
+  /**
+   * When we were first notified of a change we haven't yet refreshed for; zero if none
+   */
+  long notifiedNanos;
+
+  /**
+   * The outstanding wait on each invalidation key
+   */
+  final Map<String, ListenableFuture<Long>> watches = Maps.newHashMap();
+
+  boolean stopped;
+
+  public ObserveMultiplexer(TriggerDdpDataSource dataSource, String key, Query query, List<String> invalidationKeys) {
+    this.dataSource = dataSource;
+    this.key = key;
+    this.query = query;
+    this.projection = query.getProjection();
+    this.invalidationSystem = dataSource.invalidationSystem;
+    this.invalidationKeys = invalidationKeys;
+    this.useChangeFeed = dataSource.useChangeFeed;
+    this.scheduler = dataSource.scheduler;
+
+    long coalesceMillis = 0;
+    for (String invalidationKey : invalidationKeys) {
+      coalesceMillis = Math.max(coalesceMillis, dataSource.getCoalesceWindow(invalidationKey));
+    }
+    this.coalesceNanos = TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+
+    if (query.getLimit() > 0) {
+      this.window = new TopNWindow(query.getSort() != null ? query.getSort() : Sort.BY_ID, query.getLimit());
+    } else {
+      this.window = null;
+    }
+  }
+
+  /**
+   * Adds the subscription, sending it the current results.
+   * 
+   * Returns false if the multiplexer has already been stopped; the caller should create a new one.
+   */
+  public boolean attach(TriggerDdpSubscription subscription) throws Exception {
+    synchronized (this) {
+      if (stopped) {
+        return false;
+      }
+
+      if (results == null) {
+        positions = readPositions();
+        reload();
+        watchChanges();
+      }
+
+      subscriptions.add(subscription);
+      subscription.sendInitial(snapshot(), positions);
+      return true;
+    }
+  }
+
+  /**
+   * Re-sends the current results to the subscription
+   */
+  public void resend(TriggerDdpSubscription subscription) throws Exception {
+    synchronized (this) {
+      if (stopped || !subscriptions.contains(subscription)) {
+        return;
+      }
+      subscription.sendInitial(snapshot(), positions);
+    }
+  }
+
+  /**
+   * Copies the results, so the pushes can run after we have moved on
+   */
+  private List<Entry<String, Jsonable>> snapshot() {
+    List<Entry<String, Jsonable>> items = Lists.newArrayListWithCapacity(results.size());
+    for (Entry<String, Jsonable> entry : results.entrySet()) {
+      items.add(Maps.immutableEntry(entry.getKey(), entry.getValue()));
+    }
+    return items;
+  }
+
+  public void detach(TriggerDdpSubscription subscription) {
+    boolean stop = false;
+    synchronized (this) {
+      if (!subscriptions.remove(subscription)) {
+        return;
+      }
+      if (subscriptions.isEmpty()) {
+        stopped = true;
+        results = null;
+        stop = true;
+
+        for (ListenableFuture<Long> watch : watches.values()) {
+          watch.cancel(false);
+        }
+        watches.clear();
+      }
+    }
+
+    if (stop) {
+      log.debug("Stopping multiplexer {}", key);
+      dataSource.multiplexerStopped(this);
+    }
+  }
+
+  private Map<String, Long> readPositions() {
+    Map<String, Long> positions = Maps.newHashMap();
+    for (String invalidationKey : invalidationKeys) {
+      positions.put(invalidationKey, invalidationSystem.getPosition(invalidationKey));
+    }
+    return positions;
+  }
+
+  private void reload() {
+    // Read the feed position first; replaying a change we already have is harmless
+    feedPosition = useChangeFeed ? query.getChangePosition() : -1;
+
+    if (window != null) {
+      Iterable<Entry<String, Jsonable>> items = query.getItems(window.getFetchCount());
+      if (items != null) {
+        window.load(items);
+        results = Maps.newLinkedHashMap();
+        for (Entry<String, Jsonable> entry : window.getResults().entrySet()) {
+          results.put(entry.getKey(), project(entry.getValue()));
+        }
+        return;
+      }
+      // We can't see past the end of the results, so can't maintain them; re-run the query on every change
+      feedPosition = -1;
+    }
+
+    Map<String, Jsonable> items = Maps.newLinkedHashMap();
+    for (Entry<String, Jsonable> entry : query.getItems()) {
+      items.put(entry.getKey(), project(entry.getValue()));
+    }
+    results = items;
+  }
+
+  private Jsonable project(Jsonable document) {
+    return projection != null ? projection.apply(document) : document;
+  }
+
+  /**
+   * Waits for the next change on each key, unless we are still waiting on it.
+   * 
+   * A wait that is still outstanding may be for a position we have already seen; that just costs an extra refresh.
+   */
+  private void watchChanges() {
+    for (String invalidationKey : invalidationKeys) {
+      ListenableFuture<Long> watch = watches.get(invalidationKey);
+      if (watch != null && !watch.isDone()) {
+        continue;
+      }
+      watch = invalidationSystem.waitForPosition(invalidationKey, positions.get(invalidationKey) + 1);
+      watches.put(invalidationKey, watch);
+      Futures.addCallback(watch, changeCallback, MoreExecutors.directExecutor());
+    }
+  }
+
+  final FutureCallback<Long> changeCallback = new FutureCallback<Long>() {
+
+    @Override
+    public void onFailure(Throwable e) {
+      if (e instanceof CancellationException) {
+        // We were stopped
+        return;
+      }
+      log.error("Error in multiplexer {}", key, e);
+    }
+
+    @Override
+    public void onSuccess(Long newPosition) {
+      long delayNanos = 0;
+      synchronized (ObserveMultiplexer.this) {
+        long now = System.nanoTime();
+        if (notifiedNanos == 0) {
+          notifiedNanos = now;
+        }
+        if (coalesceNanos > 0) {
+          delayNanos = (lastRefreshNanos + coalesceNanos) - now;
+        }
+      }
+
+      if (delayNanos > 0) {
+        DdpExecutors.TIMER.schedule(new Runnable() {
+          @Override
+          public void run() {
+            scheduler.execute(ObserveMultiplexer.this, refreshTask);
+          }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+      } else {
+        scheduler.execute(ObserveMultiplexer.this, refreshTask);
+      }
+    }
+  };
+
+  final Runnable refreshTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        refresh();
+      } catch (Exception e) {
+        log.error("Error in multiplexer refresh", e);
+      }
+    }
+  };
+
+  private void refresh() {
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+
+      // Jump to the latest positions; everything up to here is in storage, so we cover any coalesced writes
+      Map<String, Long> newPositions = readPositions();
+      lastRefreshNanos = System.nanoTime();
+      long notifiedNanos = this.notifiedNanos;
+      this.notifiedNanos = 0;
+
+      log.debug("Refreshing {} at {}", key, newPositions);
+
+      List<StorageChange> changes = null;
+      if (feedPosition >= 0) {
+        changes = query.getChanges(feedPosition);
+      }
+
+      if (changes != null) {
+        changes = applyChanges(changes);
+        if (changes == null) {
+          log.debug("Window ran out of results; re-running query {}", query);
+        }
+      } else if (useChangeFeed) {
+        log.debug("Change feed not available from {}; re-running query {}", feedPosition, query);
+      }
+      if (changes == null) {
+        reload();
+      }
+
+      List<Entry<String, Jsonable>> items = changes == null ? snapshot() : null;
+      for (TriggerDdpSubscription subscription : subscriptions) {
+        if (changes == null) {
+          subscription.sendAll(items, newPositions, notifiedNanos);
+        } else {
+          subscription.sendChanges(changes, newPositions, notifiedNanos);
+        }
+      }
+      positions = newPositions;
+
+      watchChanges();
+    }
+  }
+
+  /**
+   * Applies the feed to our results, returning the changes as seen by the query; or null if we have to re-run it
+   */
+  private List<StorageChange> applyChanges(List<StorageChange> changes) {
+    if (window != null) {
+      return applyWindowChanges(changes);
+    }
+
+    List<StorageChange> applied = Lists.newArrayList();
+    for (StorageChange change : changes) {
+      String id = change.getId();
+      feedPosition = change.getPosition();
+
+      if (change.getType() != StorageChange.Type.REMOVED && query.matches(id, change.getDocument())) {
+        if (projection == null) {
+          results.put(id, change.getDocument());
+          applied.add(change);
+        } else {
+          addProjected(applied, change.getPosition(), change.getType(), id, change.getDocument());
+        }
+      } else {
+        Jsonable previous = results.remove(id);
+        if (previous != null) {
+          // Removed, or no longer matches the query
+          applied.add(new StorageChange(change.getPosition(), StorageChange.Type.REMOVED, id, null, previous));
+        }
+      }
+    }
+    return applied;
+  }
+
+  /**
+   * Records the projection of a new or changed document in the results; drops the change if none of the projected
+   * fields changed
+   */
+  private void addProjected(List<StorageChange> applied, long position, StorageChange.Type type, String id,
+      Jsonable document) {
+    Jsonable projected = project(document);
+    Jsonable previous = results.put(id, projected);
+    if (projection != null && previous != null && previous.toJsonElement().equals(projected.toJsonElement())) {
+      return;
+    }
+    applied.add(new StorageChange(position, type, id, projected, previous));
+  }
+
+  private List<StorageChange> applyWindowChanges(List<StorageChange> changes) {
+    List<StorageChange> applied = Lists.newArrayList();
+    for (StorageChange change : changes) {
+      String id = change.getId();
+      feedPosition = change.getPosition();
+
+      boolean matches = change.getType() != StorageChange.Type.REMOVED && query.matches(id, change.getDocument());
+      List<StorageChange> windowChanges = window.apply(change, matches);
+      if (windowChanges == null) {
+        return null;
+      }
+      for (StorageChange windowChange : windowChanges) {
+        if (windowChange.getType() == StorageChange.Type.REMOVED) {
+          Jsonable previous = results.remove(windowChange.getId());
+          applied.add(new StorageChange(windowChange.getPosition(), StorageChange.Type.REMOVED, windowChange.getId(),
+              null, previous));
+        } else {
+          addProjected(applied, windowChange.getPosition(), windowChange.getType(), windowChange.getId(),
+              windowChange.getDocument());
+        }
+      }
+    }
+    return applied;
+  }
+
+  @Override
+  public String toString() {
+    return "ObserveMultiplexer [key=" + key + ", invalidationKeys=" + invalidationKeys + ", positions=" + positions
+        + ", subscriptions=" + subscriptions.size() + "]";
+  }
+
+}
@@ -5,9 +5,13 @@ import java.util.Map.Entry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.justinsb.ddpserver.DdpPublishContext;
 import com.justinsb.ddpserver.DdpSubscription;
 import com.justinsb.ddpserver.Jsonable;
+import com.justinsb.ddpserver.Projection;
 
 public abstract class SimpleDdpSubscription extends DdpSubscription {
 
@@ -22,6 +26,15 @@ public abstract class SimpleDdpSubscription extends DdpSubscription {
     String collectionName = getCollectionName();
 
     Iterable<Entry<String, Jsonable>> items = getInitialItems();
+    final Projection projection = context.getProjection();
+    if (projection != null) {
+      items = Iterables.transform(items, new Function<Entry<String, Jsonable>, Entry<String, Jsonable>>() {
+        @Override
+        public Entry<String, Jsonable> apply(Entry<String, Jsonable> item) {
+          return Maps.immutableEntry(item.getKey(), projection.apply(item.getValue()));
+        }
+      });
+    }
     mergeBox.replaceAll(subscriptionId, collectionName, items);
     sendReady();
   }
@@ -0,0 +1,154 @@
+package com.justinsb.ddpserver.triggeredpoll;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * The live subscriptions, indexed by invalidation key.
+ * 
+ * Implements the write fence: after a write we wait only for the subscriptions on the keys it touched.
+ *
+ */
+public class SubscriptionRegistry {
+
+  final ConcurrentMap<String, Set<TriggerDdpSubscription>> subscriptions = Maps.newConcurrentMap();
+
+  /**
+   * The number of fine-grained keys (document, field, ...) with subscriptions, by collection key
+   */
+  final ConcurrentMap<String, AtomicInteger> fineGrainedKeyCounts = Maps.newConcurrentMap();
+
+  public void register(String key, TriggerDdpSubscription subscription) {
+    synchronized (subscriptions) {
+      Set<TriggerDdpSubscription> keySubscriptions = subscriptions.get(key);
+      if (keySubscriptions == null) {
+        keySubscriptions = Sets.newConcurrentHashSet();
+        subscriptions.put(key, keySubscriptions);
+        countFineGrainedKey(key, 1);
+      }
+      keySubscriptions.add(subscription);
+    }
+  }
+
+  public void unregister(String key, TriggerDdpSubscription subscription) {
+    synchronized (subscriptions) {
+      Set<TriggerDdpSubscription> keySubscriptions = subscriptions.get(key);
+      if (keySubscriptions == null) {
+        return;
+      }
+      keySubscriptions.remove(subscription);
+      if (keySubscriptions.isEmpty()) {
+        subscriptions.remove(key);
+        countFineGrainedKey(key, -1);
+      }
+    }
+  }
+
+  /**
+   * Called with the lock held
+   */
+  private void countFineGrainedKey(String key, int delta) {
+    if (!InvalidationKeys.isFineGrained(key)) {
+      return;
+    }
+    String collectionKey = InvalidationKeys.collectionKeyOf(key);
+    AtomicInteger count = fineGrainedKeyCounts.get(collectionKey);
+    if (count == null) {
+      count = new AtomicInteger();
+      fineGrainedKeyCounts.put(collectionKey, count);
+    }
+    count.addAndGet(delta);
+  }
+
+  /**
+   * True if any subscription watches a key finer than the whole collection; if not, a write needn't look at the
+   * documents it changed to work out its keys
+   */
+  public boolean hasFineGrainedKeys(String collectionName) {
+    AtomicInteger count = fineGrainedKeyCounts.get(InvalidationKeys.collection(collectionName));
+    return count != null && count.get() > 0;
+  }
+
+  /**
+   * Returns the keys that have subscriptions and start with the prefix
+   */
+  public List<String> getKeysWithPrefix(String prefix) {
+    List<String> keys = Lists.newArrayList();
+    for (String key : subscriptions.keySet()) {
+      if (key.startsWith(prefix)) {
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  public boolean hasSubscriptions(String key) {
+    return subscriptions.containsKey(key);
+  }
+
+  /**
+   * The number of keys with subscriptions
+   */
+  public int getKeyCount() {
+    return subscriptions.size();
+  }
+
+  public int size(String key) {
+    Set<TriggerDdpSubscription> keySubscriptions = subscriptions.get(key);
+    return keySubscriptions != null ? keySubscriptions.size() : 0;
+  }
+
+  /**
+   * Returns a future that completes when every live subscription on the key has sent the position.
+   * 
+   * We count down the subscriptions that are behind, so the cost is proportional to the subscriptions on the key.
+   */
+  public ListenableFuture<Long> waitForSent(String key, final long position) {
+    final SettableFuture<Long> future = SettableFuture.create();
+
+    List<ListenableFuture<Long>> lagging = Lists.newArrayList();
+    Set<TriggerDdpSubscription> keySubscriptions = subscriptions.get(key);
+    if (keySubscriptions != null) {
+      for (TriggerDdpSubscription subscription : keySubscriptions) {
+        if (!subscription.hasSent(key, position)) {
+          lagging.add(subscription.waitForSent(key, position));
+        }
+      }
+    }
+
+    if (lagging.isEmpty()) {
+      future.set(position);
+      return future;
+    }
+
+    final AtomicInteger remaining = new AtomicInteger(lagging.size());
+    FutureCallback<Long> callback = new FutureCallback<Long>() {
+      @Override
+      public void onSuccess(Long result) {
+        if (remaining.decrementAndGet() == 0) {
+          future.set(position);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        future.setException(t);
+      }
+    };
+    for (ListenableFuture<Long> sent : lagging) {
+      Futures.addCallback(sent, callback);
+    }
+    return future;
+  }
+
+}
@@ -0,0 +1,190 @@
+package com.justinsb.ddpserver.triggeredpoll;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.justinsb.ddpserver.Jsonable;
+import com.justinsb.ddpserver.Sort;
+import com.justinsb.ddpserver.StorageChange;
+
+/**
+ * The results of a sorted, limited query, maintained from the change feed without re-running the query.
+ *
+ * We keep the window (the first limit matches, in sort order) and a buffer of the matches that come next, so that
+ * when a document leaves the window we can promote its replacement. The buffer is bounded; if it runs dry while
+ * there may be more matches beyond it, we can't know what comes next, and the query has to be re-run.
+ *
+ * Each change costs O(log n) in the size of the window; we only report documents entering or leaving the window (or
+ * changing inside it).
+ *
+ */
+class TopNWindow {
+  final Sort sort;
+  final int limit;
+  final int bufferSize;
+
+  final TreeSet<Entry<String, Jsonable>> window;
+  final TreeSet<Entry<String, Jsonable>> buffer;
+
+  /**
+   * Everything in the window or the buffer, by id
+   */
+  final Map<String, Entry<String, Jsonable>> entries = Maps.newHashMap();
+
+  /**
+   * If false, there may be matches after the end of the buffer that we don't know about
+   */
+  boolean bufferComplete;
+
+  TopNWindow(Sort sort, int limit) {
+    this.sort = sort;
+    this.limit = limit;
+    this.bufferSize = Math.max(limit, 16);
+    this.window = new TreeSet<Entry<String, Jsonable>>(sort);
+    this.buffer = new TreeSet<Entry<String, Jsonable>>(sort);
+  }
+
+  /**
+   * How many results to ask for when loading; one more than we keep, so we know whether there are more
+   */
+  int getFetchCount() {
+    return limit + bufferSize + 1;
+  }
+
+  /**
+   * Replaces the contents with the first results of the query, in sort order
+   */
+  void load(Iterable<Entry<String, Jsonable>> items) {
+    window.clear();
+    buffer.clear();
+    entries.clear();
+    bufferComplete = true;
+
+    for (Entry<String, Jsonable> item : items) {
+      Entry<String, Jsonable> entry = Maps.immutableEntry(item.getKey(), item.getValue());
+      if (window.size() < limit) {
+        window.add(entry);
+      } else if (buffer.size() < bufferSize) {
+        buffer.add(entry);
+      } else {
+        bufferComplete = false;
+        break;
+      }
+      entries.put(entry.getKey(), entry);
+    }
+  }
+
+  /**
+   * The documents in the window
+   */
+  Map<String, Jsonable> getResults() {
+    Map<String, Jsonable> results = Maps.newLinkedHashMap();
+    for (Entry<String, Jsonable> entry : window) {
+      results.put(entry.getKey(), entry.getValue());
+    }
+    return results;
+  }
+
+  /**
+   * Applies a change from the feed (matches says whether the new version belongs in the results).
+   *
+   * Returns the resulting changes to the window, or null if we no longer know what is in it and the query must be
+   * re-run.
+   */
+  List<StorageChange> apply(StorageChange change, boolean matches) {
+    String id = change.getId();
+    long position = change.getPosition();
+
+    // Documents that moved in or out of the window (other than this one); true if they moved in
+    Map<String, Boolean> moved = Maps.newLinkedHashMap();
+
+    Entry<String, Jsonable> old = entries.remove(id);
+    boolean wasInWindow = false;
+    if (old != null) {
+      wasInWindow = window.remove(old);
+      if (!wasInWindow) {
+        buffer.remove(old);
+      }
+    }
+
+    Entry<String, Jsonable> current = null;
+    if (matches) {
+      current = Maps.immutableEntry(id, change.getDocument());
+      insert(current, moved);
+    }
+
+    // Fill any gap in the window from the buffer
+    while (window.size() < limit && !buffer.isEmpty()) {
+      Entry<String, Jsonable> promoted = buffer.pollFirst();
+      window.add(promoted);
+      if (!promoted.getKey().equals(id)) {
+        recordMove(moved, promoted.getKey(), true);
+      }
+    }
+    if (window.size() < limit && !bufferComplete) {
+      return null;
+    }
+
+    List<StorageChange> changes = Lists.newArrayList();
+    boolean isInWindow = current != null && window.contains(current);
+    if (wasInWindow && isInWindow) {
+      changes.add(new StorageChange(position, StorageChange.Type.CHANGED, id, current.getValue(), old.getValue()));
+    } else if (wasInWindow) {
+      changes.add(new StorageChange(position, StorageChange.Type.REMOVED, id, null, old.getValue()));
+    } else if (isInWindow) {
+      changes.add(new StorageChange(position, StorageChange.Type.ADDED, id, current.getValue(), null));
+    }
+
+    for (Entry<String, Boolean> move : moved.entrySet()) {
+      Entry<String, Jsonable> entry = entries.get(move.getKey());
+      if (move.getValue()) {
+        changes.add(new StorageChange(position, StorageChange.Type.ADDED, move.getKey(), entry.getValue(), null));
+      } else {
+        changes.add(new StorageChange(position, StorageChange.Type.REMOVED, move.getKey(), null,
+            entry == null ? null : entry.getValue()));
+      }
+    }
+    return changes;
+  }
+
+  private void insert(Entry<String, Jsonable> entry, Map<String, Boolean> moved) {
+    if (window.size() >= limit && sort.compare(entry, window.last()) < 0) {
+      // Displaces the last document in the window
+      window.add(entry);
+      entries.put(entry.getKey(), entry);
+      Entry<String, Jsonable> demoted = window.pollLast();
+      recordMove(moved, demoted.getKey(), false);
+      // It comes straight after the window, so it belongs at the front of the buffer
+      addToBuffer(demoted);
+    } else if (window.size() < limit && buffer.isEmpty() && bufferComplete) {
+      window.add(entry);
+      entries.put(entry.getKey(), entry);
+    } else if (bufferComplete || (!buffer.isEmpty() && sort.compare(entry, buffer.last()) < 0)) {
+      entries.put(entry.getKey(), entry);
+      addToBuffer(entry);
+    }
+    // Otherwise it comes after documents we don't know about
+  }
+
+  private void addToBuffer(Entry<String, Jsonable> entry) {
+    buffer.add(entry);
+    if (buffer.size() > bufferSize) {
+      Entry<String, Jsonable> evicted = buffer.pollLast();
+      entries.remove(evicted.getKey());
+      bufferComplete = false;
+    }
+  }
+
+  private static void recordMove(Map<String, Boolean> moved, String id, boolean in) {
+    Boolean previous = moved.remove(id);
+    if (previous == null || previous == in) {
+      moved.put(id, in);
+    }
+    // Moving in and then out (or out and in) cancels out
+  }
+
+}
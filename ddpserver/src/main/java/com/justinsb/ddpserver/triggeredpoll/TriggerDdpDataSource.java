@@ -1,13 +1,19 @@
 package com.justinsb.ddpserver.triggeredpoll;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -15,16 +21,19 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 import com.justinsb.ddpserver.DdpDataSource;
+import com.justinsb.ddpserver.DdpDocumentStore;
 import com.justinsb.ddpserver.DdpMethodResult;
 import com.justinsb.ddpserver.DdpPublish;
 import com.justinsb.ddpserver.DdpPublishContext;
 import com.justinsb.ddpserver.DdpSession;
 import com.justinsb.ddpserver.DdpSubscription;
 import com.justinsb.ddpserver.Jsonable;
-import com.justinsb.ddpserver.Query;
+import com.justinsb.ddpserver.Projection;
 import com.justinsb.ddpserver.Storage;
+import com.justinsb.ddpserver.StorageChange;
+import com.justinsb.ddpserver.metrics.DdpMetrics;
+import com.justinsb.ddpserver.metrics.Gauge;
 
 /**
  * Backend for DDP, which uses a simple data store with a separate invalidation system
@@ -33,53 +42,237 @@ public class TriggerDdpDataSource implements DdpDataSource {
 
   private static final Logger log = LoggerFactory.getLogger(TriggerDdpDataSource.class);
 
-  final List<TriggerDdpSubscription> subscriptions = Lists.newArrayList();
+  final SubscriptionRegistry subscriptions = new SubscriptionRegistry();
+
+  /**
+   * Running queries, keyed by publication name & params
+   */
+  final Map<String, ObserveMultiplexer> multiplexers = Maps.newHashMap();
 
   final Storage storage;
   final InvalidationSystem invalidationSystem;
+  final DdpMetrics metrics;
+  final DdpDocumentStore documentStore;
+
+  /**
+   * If set, subscriptions apply the storage change feed instead of re-running the query on every invalidation
+   */
+  boolean useChangeFeed = true;
+
+  /**
+   * Minimum time between refreshes of a query, by invalidation key
+   */
+  final ConcurrentMap<String, Long> coalesceWindows = Maps.newConcurrentMap();
+  long defaultCoalesceMillis = 0;
+
+  /**
+   * Runs query refreshes and the pushes to each session
+   */
+  DdpScheduler scheduler = DdpExecutors.DEFAULT_SCHEDULER;
+
+  /**
+   * If set, sessions handle their inbound messages on the scheduler rather than the I/O thread
+   */
+  boolean runSessionsOnScheduler = false;
 
   public TriggerDdpDataSource(Storage storage, InvalidationSystem invalidationSystem) {
+    this(storage, invalidationSystem, DdpMetrics.DEFAULT);
+  }
+
+  public TriggerDdpDataSource(Storage storage, InvalidationSystem invalidationSystem, DdpMetrics metrics) {
+    this(storage, invalidationSystem, metrics, DdpDocumentStore.DEFAULT);
+  }
+
+  public TriggerDdpDataSource(Storage storage, InvalidationSystem invalidationSystem, DdpMetrics metrics,
+      DdpDocumentStore documentStore) {
     this.storage = storage;
     this.invalidationSystem = invalidationSystem;
+    this.metrics = metrics;
+    this.documentStore = documentStore;
+
+    registerGauges(metrics);
   }
 
   @Override
-  public DdpPublish getPublishFunction(DdpSession session, final String collectionName, JsonArray params) {
+  public DdpMetrics getMetrics() {
+    return metrics;
+  }
 
-    String invalidationKey = collectionName;
-    Query query = new Query() {
+  @Override
+  public DdpDocumentStore getDocumentStore() {
+    return documentStore;
+  }
 
+  private void registerGauges(DdpMetrics metrics) {
+    metrics.registerGauge("scheduler.queueDepth", new Gauge() {
       @Override
-      public String getCollectionName() {
-        return collectionName;
+      public long getValue() {
+        return scheduler.getQueueDepth();
       }
-
+    });
+    metrics.registerGauge("scheduler.meanWaitMicros", new Gauge() {
       @Override
-      public Iterable<Entry<String, Jsonable>> getItems() {
-        Iterable<Entry<String, Jsonable>> items = storage.query(collectionName);
-        return items;
+      public long getValue() {
+        return scheduler instanceof FairDdpScheduler ? ((FairDdpScheduler) scheduler).getMeanWaitMicros() : -1;
       }
-
+    });
+    metrics.registerGauge("scheduler.maxWaitMicros", new Gauge() {
+      @Override
+      public long getValue() {
+        return scheduler instanceof FairDdpScheduler ? ((FairDdpScheduler) scheduler).getMaxWaitMicros() : -1;
+      }
+    });
+    metrics.registerGauge("multiplexers", new Gauge() {
+      @Override
+      public long getValue() {
+        synchronized (multiplexers) {
+          return multiplexers.size();
+        }
+      }
+    });
+    metrics.registerGauge("subscribedKeys", new Gauge() {
       @Override
-      public String toString() {
-        return "Query:" + collectionName;
+      public long getValue() {
+        return subscriptions.getKeyCount();
       }
+    });
+  }
+
+  public void setUseChangeFeed(boolean useChangeFeed) {
+    this.useChangeFeed = useChangeFeed;
+  }
+
+  /**
+   * Refresh queries on the key at most once per window; writes within the window are coalesced into one refresh. A
+   * window set on a collection's key (see {@link InvalidationKeys#collection}) also applies to its fine-grained keys.
+   * 
+   * Only affects queries started after the call.
+   */
+  public void setCoalesceWindow(String invalidationKey, long millis) {
+    coalesceWindows.put(invalidationKey, millis);
+  }
+
+  public void setDefaultCoalesceWindow(long millis) {
+    this.defaultCoalesceMillis = millis;
+  }
+
+  /**
+   * Should be set before any subscriptions are started.
+   */
+  public void setScheduler(DdpScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  public DdpScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Should be set before any sessions are started.
+   */
+  public void setRunSessionsOnScheduler(boolean runSessionsOnScheduler) {
+    this.runSessionsOnScheduler = runSessionsOnScheduler;
+  }
+
+  /**
+   * Runs each session's messages, and each refresh, on virtual threads; for storage that blocks.
+   * 
+   * Should be called before any sessions are started.
+   */
+  public void useVirtualThreads() {
+    setScheduler(new VirtualThreadDdpScheduler());
+    setRunSessionsOnScheduler(true);
+  }
 
+  @Override
+  public Executor getSessionExecutor(final DdpSession session) {
+    if (!runSessionsOnScheduler) {
+      return null;
+    }
+
+    // Keyed by the session, so messages are ordered with the pushes to the session's subscriptions
+    final DdpScheduler scheduler = this.scheduler;
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        scheduler.execute(session, command);
+      }
     };
+  }
+
+  long getCoalesceWindow(String invalidationKey) {
+    Long millis = coalesceWindows.get(invalidationKey);
+    if (millis == null) {
+      // Fine-grained keys inherit the setting for their collection
+      if (InvalidationKeys.isFineGrained(invalidationKey)) {
+        millis = coalesceWindows.get(InvalidationKeys.collectionKeyOf(invalidationKey));
+      }
+    }
+    if (millis != null) {
+      return millis;
+    }
+    return defaultCoalesceMillis;
+  }
+
+  @Override
+  public DdpPublish getPublishFunction(DdpSession session, final String collectionName, JsonArray params) {
+    final CollectionQuery query = CollectionQuery.fromParams(storage, collectionName, params);
+    final List<String> invalidationKeys = query.getInvalidationKeys();
+    final String multiplexerKey = collectionName + ":" + params;
+
     return new DdpPublish() {
       @Override
       public DdpSubscription subscribe(DdpPublishContext context, String name, JsonArray params) throws Exception {
-        TriggerDdpSubscription subscription = new TriggerDdpSubscription(context, invalidationSystem, invalidationKey,
-            query);
-        synchronized (this) {
-          subscriptions.add(subscription);
+        TriggerDdpSubscription subscription = new TriggerDdpSubscription(context, TriggerDdpDataSource.this,
+            multiplexerKey, query, invalidationKeys);
+        for (String invalidationKey : invalidationKeys) {
+          subscriptions.register(invalidationKey, subscription);
         }
 
         return subscription;
       }
+
+      @Override
+      public Projection getProjection() {
+        // Applied by the multiplexer, once for all its subscriptions
+        return query.getProjection();
+      }
     };
   }
 
+  /**
+   * Attaches the subscription to the multiplexer for its query, creating the multiplexer if needed
+   */
+  ObserveMultiplexer attach(TriggerDdpSubscription subscription) throws Exception {
+    String key = subscription.multiplexerKey;
+    while (true) {
+      ObserveMultiplexer multiplexer;
+      synchronized (multiplexers) {
+        multiplexer = multiplexers.get(key);
+        if (multiplexer == null) {
+          multiplexer = new ObserveMultiplexer(this, key, subscription.query, subscription.invalidationKeys);
+          multiplexers.put(key, multiplexer);
+        }
+      }
+
+      if (multiplexer.attach(subscription)) {
+        return multiplexer;
+      }
+
+      // The multiplexer stopped after we found it; make sure it is gone and retry
+      log.debug("Multiplexer stopped while attaching; retrying: {}", key);
+      multiplexerStopped(multiplexer);
+    }
+  }
+
+  void multiplexerStopped(ObserveMultiplexer multiplexer) {
+    synchronized (multiplexers) {
+      if (multiplexers.get(multiplexer.key) == multiplexer) {
+        multiplexers.remove(multiplexer.key);
+      }
+    }
+  }
+
   @Override
   public DdpMethodResult executeMethod(final DdpSession session, final String methodId, String method, JsonArray params) {
     List<String> tokens = Splitter.on('/').splitToList(method);
@@ -88,83 +281,125 @@ public class TriggerDdpDataSource implements DdpDataSource {
         String collectionName = tokens.get(1);
         String collectionMethod = tokens.get(2);
 
+        long changePosition = storage.getChangePosition(collectionName);
+
         JsonElement result = storage.executeCollectionMethod(session, methodId, collectionName, collectionMethod,
             params);
 
-        String invalidationKey = collectionName;
-        long newPosition = invalidationSystem.notifyChange(invalidationKey);
+        final long fenceStartNanos = System.nanoTime();
+        List<ListenableFuture<Long>> fences = Lists.newArrayList();
+        for (String invalidationKey : getAffectedKeys(collectionName, changePosition)) {
+          long newPosition = invalidationSystem.notifyChange(invalidationKey);
+          fences.add(subscriptions.waitForSent(invalidationKey, newPosition));
+        }
 
-        ListenableFuture<Long> sentChanges = waitForSubscriptionPosition(invalidationKey, newPosition);
-        Futures.addCallback(sentChanges, new FutureCallback<Long>() {
+        // The session sends "updated" once every subscription on the keys has sent the change
+        final SettableFuture<Boolean> complete = SettableFuture.create();
+        ListenableFuture<List<Long>> sentChanges = Futures.allAsList(fences);
+        Futures.addCallback(sentChanges, new FutureCallback<List<Long>>() {
 
           @Override
           public void onFailure(Throwable t) {
             session.unexpectedError(t);
+            complete.setException(t);
           }
 
           @Override
-          public void onSuccess(Long pos) {
-            try {
-              JsonObject updated = new JsonObject();
-              updated.addProperty("msg", "updated");
-              JsonArray methodIds = new JsonArray();
-              methodIds.add(new JsonPrimitive(methodId));
-              updated.add("methods", methodIds);
-              session.sendMessage(updated);
-            } catch (Exception e) {
-              session.unexpectedError(e);
-            }
+          public void onSuccess(List<Long> positions) {
+            metrics.writeFenceWait.recordSince(fenceStartNanos);
+            complete.set(true);
           }
 
         });
-        return DdpMethodResult.complete(result);
+        return DdpMethodResult.completeWhen(result, complete);
       }
     }
 
     throw new IllegalArgumentException();
   }
 
-  private ListenableFuture<Long> waitForSubscriptionPosition(String invalidationKey, long newPosition) {
-    SettableFuture<Long> future = SettableFuture.create();
+  /**
+   * Works out the invalidation keys touched by a write: the collection, plus the document and field keys that
+   * subscriptions are watching.
+   * 
+   * We read the change feed from before the write; if there is no feed, we conservatively touch every watched key in
+   * the collection.
+   */
+  List<String> getAffectedKeys(String collectionName, long changePosition) {
+    Set<String> keys = Sets.newLinkedHashSet();
+    keys.add(InvalidationKeys.collection(collectionName));
+
+    List<StorageChange> changes = null;
+    if (changePosition >= 0) {
+      changes = storage.getChanges(collectionName, changePosition);
+    }
 
-    waitForSubscriptionPosition0(invalidationKey, newPosition, future);
-    return future;
+    if (!subscriptions.hasFineGrainedKeys(collectionName)) {
+      // Nothing to add; and we don't parse the documents (which may be lazily loaded) to find out
+    } else if (changes == null) {
+      keys.addAll(subscriptions.getKeysWithPrefix(InvalidationKeys.prefix(collectionName)));
+    } else {
+      for (StorageChange change : changes) {
+        addWatchedKey(keys, InvalidationKeys.document(collectionName, change.getId()));
+        addWatchedFieldKeys(keys, collectionName, change.getPrevious());
+        addWatchedFieldKeys(keys, collectionName, change.getDocument());
+        addWatchedChangeKeys(keys, collectionName, change);
+      }
+    }
+    return Lists.newArrayList(keys);
   }
 
-  private void waitForSubscriptionPosition0(final String invalidationKey, final long newPosition,
-      final SettableFuture<Long> future) {
-    synchronized (subscriptions) {
-      TriggerDdpSubscription notReady = null;
-      for (TriggerDdpSubscription subscription : subscriptions) {
-        if (!subscription.isWatching(invalidationKey)) {
-          continue;
-        }
-        if (!subscription.hasSent(newPosition)) {
-          notReady = subscription;
-          break;
+  private void addWatchedFieldKeys(Set<String> keys, String collectionName, Jsonable document) {
+    if (document == null) {
+      return;
+    }
+    for (Entry<String, JsonElement> field : document.toJsonElement().getAsJsonObject().entrySet()) {
+      JsonElement value = field.getValue();
+      if (value.isJsonPrimitive()) {
+        addWatchedKey(keys, InvalidationKeys.field(collectionName, field.getKey(), value));
+      } else if (value.isJsonArray()) {
+        // A selector on an array field matches its elements
+        for (JsonElement element : value.getAsJsonArray()) {
+          if (element.isJsonPrimitive()) {
+            addWatchedKey(keys, InvalidationKeys.field(collectionName, field.getKey(), element));
+          }
         }
       }
+    }
+  }
 
-      if (notReady == null) {
-        future.set(newPosition);
-        return;
-      }
-
-      log.debug("Waiting for subscription to hit {}: {}", newPosition, notReady);
-
-      ListenableFuture<Long> notification = notReady.waitForSent(newPosition);
-      Futures.addCallback(notification, new FutureCallback<Long>() {
+  /**
+   * Adds the keys for the fields the write changed, so subscriptions that only send some fields aren't woken by writes
+   * to the others
+   */
+  private void addWatchedChangeKeys(Set<String> keys, String collectionName, StorageChange change) {
+    if (change.getType() != StorageChange.Type.CHANGED) {
+      addWatchedKey(keys, InvalidationKeys.membership(collectionName));
+    }
 
-        @Override
-        public void onFailure(Throwable t) {
-          future.setException(t);
+    JsonObject previous = change.getPrevious() != null ? change.getPrevious().toJsonElement().getAsJsonObject() : null;
+    JsonObject document = change.getDocument() != null ? change.getDocument().toJsonElement().getAsJsonObject() : null;
+    if (previous != null) {
+      for (Entry<String, JsonElement> field : previous.entrySet()) {
+        JsonElement value = document != null ? document.get(field.getKey()) : null;
+        if (!field.getValue().equals(value)) {
+          addWatchedKey(keys, InvalidationKeys.fieldChanged(collectionName, field.getKey()));
         }
-
-        @Override
-        public void onSuccess(Long p) {
-          waitForSubscriptionPosition0(invalidationKey, newPosition, future);
+      }
+    }
+    if (document != null) {
+      for (Entry<String, JsonElement> field : document.entrySet()) {
+        if (previous == null || !previous.has(field.getKey())) {
+          addWatchedKey(keys, InvalidationKeys.fieldChanged(collectionName, field.getKey()));
         }
-      });
+      }
+    }
+  }
+
+  private void addWatchedKey(Set<String> keys, String key) {
+    // Unwatched keys need no notification: a subscription that starts later will read the write from storage
+    if (subscriptions.hasSubscriptions(key)) {
+      keys.add(key);
     }
   }
 
@@ -1,128 +1,217 @@
 package com.justinsb.ddpserver.triggeredpoll;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.justinsb.ddpserver.DdpPublishContext;
+import com.justinsb.ddpserver.DdpSession;
 import com.justinsb.ddpserver.DdpSubscription;
 import com.justinsb.ddpserver.Jsonable;
 import com.justinsb.ddpserver.Query;
-
+import com.justinsb.ddpserver.StorageChange;
+
+/**
+ * A subscription that is fed by an {@link ObserveMultiplexer}, shared with all the subscriptions to the same
+ * publication & params.
+ * 
+ * Pushes run on the scheduler, keyed by our session, so they are sent in order; the positions we have sent only move
+ * forward once a push has actually been handed to the merge box.
+ *
+ */
 public class TriggerDdpSubscription extends DdpSubscription {
 
   private static final Logger log = LoggerFactory.getLogger(TriggerDdpSubscription.class);
 
+  final TriggerDdpDataSource dataSource;
+  final String multiplexerKey;
   final Query query;
+  final List<String> invalidationKeys;
+
+  volatile ObserveMultiplexer multiplexer;
+
+  final DdpScheduler scheduler;
 
-  boolean stop = false;
+  volatile boolean stop = false;
 
-  final InvalidationSystem invalidationSystem;
-  final WatchableValue sentPosition = new WatchableValue(0);
-  final String invalidationKey;
+  /**
+   * The position we have sent, for each invalidation key we depend on
+   */
+  final Map<String, WatchableValue> sentPositions = Maps.newHashMap();
 
-  public TriggerDdpSubscription(DdpPublishContext context, InvalidationSystem invalidationSystem,
-      String invalidationKey, Query query) {
+  public TriggerDdpSubscription(DdpPublishContext context, TriggerDdpDataSource dataSource, String multiplexerKey,
+      Query query, List<String> invalidationKeys) {
     super(context);
-    this.invalidationSystem = invalidationSystem;
+    this.dataSource = dataSource;
+    this.multiplexerKey = multiplexerKey;
     this.query = query;
-    this.invalidationKey = invalidationKey;
+    this.invalidationKeys = invalidationKeys;
+    this.scheduler = dataSource.scheduler;
+    for (String invalidationKey : invalidationKeys) {
+      sentPositions.put(invalidationKey, new WatchableValue(0));
+    }
   }
 
   @Override
   public String toString() {
-    return "TriggerDdpSubscription [query=" + query + ", invalidationKey=" + invalidationKey + ", sentPosition="
-        + sentPosition + ", stop=" + stop + "]";
+    return "TriggerDdpSubscription [query=" + query + ", sentPositions=" + sentPositions + ", stop=" + stop + "]";
   }
 
   @Override
-  public void begin() throws IOException {
-    String collectionName = query.getCollectionName();
-
-    long position = invalidationSystem.getPosition(invalidationKey);
-    Iterable<Entry<String, Jsonable>> items = query.getItems();
-    mergeBox.replaceAll(subscriptionId, collectionName, items);
-    sendReady();
-
-    sentPosition.setValue(position);
+  public void begin() throws Exception {
+    multiplexer = dataSource.attach(this);
+  }
 
-    watchChanges(position + 1);
+  /**
+   * Runs the push after any earlier pushes to this session; skipped once we are stopped
+   */
+  private void push(final String description, final PushTask task) {
+    scheduler.execute(context.getSession(), new Runnable() {
+      @Override
+      public void run() {
+        if (stop) {
+          return;
+        }
+        DdpSession session = context.getSession();
+        // One batch per push, so e.g. the initial documents and "ready" go out together
+        session.beginBatch();
+        try {
+          task.run();
+        } catch (Exception e) {
+          log.warn("Error sending {} to subscription {}", description, TriggerDdpSubscription.this, e);
+        }
+        try {
+          session.endBatch();
+        } catch (IOException e) {
+          session.unexpectedError(e);
+        }
+      }
+    });
   }
 
-  private void watchChanges(long minPosition) {
-    ListenableFuture<Long> changeHandle = invalidationSystem.waitForPosition(invalidationKey, minPosition);
-    Futures.addCallback(changeHandle, new FutureCallback<Long>() {
+  interface PushTask {
+    void run() throws Exception;
+  }
 
+  /**
+   * Called by the multiplexer (holding its lock) to send the full results to a new subscription
+   */
+  void sendInitial(final List<Entry<String, Jsonable>> items, final Map<String, Long> positions) {
+    push("initial results", new PushTask() {
       @Override
-      public void onFailure(Throwable e) {
-        log.error("Error in subscription", e);
+      public void run() throws Exception {
+        mergeBox.replaceAll(subscriptionId, getCollectionName(), items);
+        sendReady();
+        setSent(positions);
       }
+    });
+  }
 
+  /**
+   * @param notifiedNanos
+   *          when the change was notified, for metrics; zero if unknown
+   */
+  void sendAll(final List<Entry<String, Jsonable>> items, final Map<String, Long> positions,
+      final long notifiedNanos) {
+    push("results", new PushTask() {
       @Override
-      public void onSuccess(Long newPosition) {
-        try {
-          if (stop) {
-            // We set the position to avoid any races
-            sentPosition.setValue(newPosition);
-            return;
-          }
-
-          log.debug("Got change notification: {}={}", invalidationKey, newPosition);
-
-          String collectionName = query.getCollectionName();
-          Iterable<Entry<String, Jsonable>> items = query.getItems();
-          mergeBox.replaceAll(subscriptionId, collectionName, items);
-          log.debug("Setting sentPosition={}", newPosition);
-          sentPosition.setValue(newPosition);
+      public void run() throws Exception {
+        mergeBox.replaceAll(subscriptionId, getCollectionName(), items);
+        setSent(positions);
+        recordSent(notifiedNanos);
+      }
+    });
+  }
 
-          watchChanges(newPosition + 1);
-        } catch (Exception e) {
-          log.error("Error in subscription refresh", e);
+  void sendChanges(final List<StorageChange> changes, final Map<String, Long> positions, final long notifiedNanos) {
+    push("changes", new PushTask() {
+      @Override
+      public void run() throws Exception {
+        if (!changes.isEmpty()) {
+          mergeBox.applyChanges(subscriptionId, getCollectionName(), changes);
         }
+        setSent(positions);
+        recordSent(notifiedNanos);
       }
-    }, DdpExecutors.DEFAULT_EXECUTOR);
+    });
   }
 
-  @Override
-  public void end() throws IOException {
-    String collectionName = query.getCollectionName();
+  private void recordSent(long notifiedNanos) {
+    if (notifiedNanos != 0) {
+      dataSource.metrics.changeToSent.recordSince(notifiedNanos);
+    }
+  }
 
-    mergeBox.unsubscribe(subscriptionId, collectionName);
+  private void setSent(Map<String, Long> positions) {
+    for (Entry<String, Long> entry : positions.entrySet()) {
+      sentPositions.get(entry.getKey()).setValue(entry.getValue());
+    }
+  }
 
-    // TODO: Actively stop
-    this.stop = true;
+  private void detach() {
+    ObserveMultiplexer multiplexer = this.multiplexer;
+    if (multiplexer != null) {
+      multiplexer.detach(this);
+    }
   }
 
-  public boolean isWatching(String invalidationKey) {
-    if (stop) {
-      return false;
+  /**
+   * Stops the subscription; it no longer holds up write fences
+   */
+  private void stop() {
+    this.stop = true;
+    detach();
+
+    for (Entry<String, WatchableValue> entry : sentPositions.entrySet()) {
+      dataSource.subscriptions.unregister(entry.getKey(), this);
+      entry.getValue().setValue(Long.MAX_VALUE);
     }
-    return this.invalidationKey.equals(invalidationKey);
   }
 
-  public boolean hasSent(long minPosition) {
-    return sentPosition.getValue() >= minPosition;
+  @Override
+  public void end() throws IOException {
+    stop();
+
+    // Queue behind any pushes already in flight, so they can't re-add documents after we unsubscribe
+    scheduler.execute(context.getSession(), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          TriggerDdpSubscription.super.end();
+        } catch (IOException e) {
+          log.warn("Error ending subscription {}", TriggerDdpSubscription.this, e);
+        }
+      }
+    });
   }
 
-  public ListenableFuture<Long> waitForSent(long newPosition) {
-    return sentPosition.waitForMin(newPosition);
+  public boolean hasSent(String invalidationKey, long minPosition) {
+    return sentPositions.get(invalidationKey).getValue() >= minPosition;
+  }
+
+  public ListenableFuture<Long> waitForSent(String invalidationKey, long newPosition) {
+    return sentPositions.get(invalidationKey).waitForMin(newPosition);
   }
 
   @Override
   public void disconnected() {
-    stop = true;
+    stop();
 
     super.disconnected();
   }
 
   @Override
-  public void recalculate() throws IOException {
-    begin();
+  public void recalculate() throws Exception {
+    ObserveMultiplexer multiplexer = this.multiplexer;
+    if (multiplexer != null) {
+      multiplexer.resend(this);
+    }
   }
 
 }
@@ -0,0 +1,20 @@
+package com.justinsb.ddpserver.triggeredpoll;
+
+import java.util.concurrent.Executors;
+
+/**
+ * A {@link DdpScheduler} that runs each lane on a virtual thread.
+ * 
+ * There is no bound on the number of lanes running at once, so tasks may block (e.g. on storage) without holding up
+ * other keys or tying up platform threads; an idle key costs nothing. Each lane drains its queue before exiting, so
+ * tasks for a key still run one at a time and in order.
+ *
+ */
+public class VirtualThreadDdpScheduler extends FairDdpScheduler {
+
+  public VirtualThreadDdpScheduler() {
+    super(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ddp-virtual-", 0).factory()), -1,
+        Integer.MAX_VALUE);
+  }
+
+}
@@ -1,18 +1,22 @@
 package com.justinsb.ddpserver.triggeredpoll;
 
-import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * Helper class that implements a value that can be set & watched (with a ListenableFuture)
  *
+ * Watchers are kept in a heap ordered by the value they are waiting for, so setting a value only touches the watchers
+ * that fire. Futures are completed outside the lock, so listeners can't stall writers.
+ *
  */
 public class WatchableValue {
-  static class Watcher {
+  static class Watcher implements Comparable<Watcher> {
     final long minValue;
     final SettableFuture<Long> future;
 
@@ -20,9 +24,14 @@ public class WatchableValue {
       this.minValue = minValue;
       this.future = SettableFuture.create();
     }
+
+    @Override
+    public int compareTo(Watcher o) {
+      return Long.compare(minValue, o.minValue);
+    }
   }
 
-  final List<Watcher> watchers = Lists.newArrayList();
+  final PriorityQueue<Watcher> watchers = new PriorityQueue<Watcher>();
 
   long value;
 
@@ -32,29 +41,52 @@ public class WatchableValue {
   }
 
   public void setValue(long newValue) {
+    List<Watcher> fired = null;
     synchronized (this) {
       this.value = newValue;
-      Iterator<Watcher> it = watchers.iterator();
-      while (it.hasNext()) {
-        Watcher watcher = it.next();
-        if (watcher.minValue <= newValue) {
-          watcher.future.set(newValue);
-          it.remove();
+      while (!watchers.isEmpty() && watchers.peek().minValue <= newValue) {
+        if (fired == null) {
+          fired = Lists.newArrayList();
         }
+        fired.add(watchers.poll());
+      }
+    }
+
+    if (fired != null) {
+      for (Watcher watcher : fired) {
+        watcher.future.set(newValue);
       }
     }
   }
 
   public ListenableFuture<Long> waitForMin(long minValue) {
+    final Watcher watcher = new Watcher(minValue);
+    long current;
+    boolean ready;
     synchronized (this) {
-      Watcher watcher = new Watcher(minValue);
-      if (watcher.minValue <= value) {
-        watcher.future.set(value);
-      } else {
+      current = value;
+      ready = watcher.minValue <= current;
+      if (!ready) {
         watchers.add(watcher);
       }
-      return watcher.future;
     }
+
+    if (ready) {
+      watcher.future.set(current);
+    } else {
+      // Don't leak watchers that are cancelled before they fire
+      watcher.future.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (watcher.future.isCancelled()) {
+            synchronized (WatchableValue.this) {
+              watchers.remove(watcher);
+            }
+          }
+        }
+      }, MoreExecutors.directExecutor());
+    }
+    return watcher.future;
   }
 
   public long getValue() {
@@ -65,7 +97,7 @@ public class WatchableValue {
 
   @Override
   public String toString() {
-    return "WatchableValue [=" + value + "]";
+    return "WatchableValue [=" + getValue() + "]";
   }
 
 }
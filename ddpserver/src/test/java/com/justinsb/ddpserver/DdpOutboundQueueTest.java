@@ -0,0 +1,154 @@
+package com.justinsb.ddpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.justinsb.ddpserver.triggeredpoll.SimpleDdpDataSource;
+
+public class DdpOutboundQueueTest {
+
+  /**
+   * Records the messages written to it; while holding, a write stays in flight until {@link #complete}
+   */
+  static class RecordingConnection implements DdpConnection {
+    final List<String> sent = Lists.newArrayList();
+    int writes;
+    boolean holding;
+    SendCallback inFlight;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public void sendMessage(String json) throws IOException {
+      sent.add(json);
+    }
+
+    @Override
+    public void sendMessages(List<String> messages, SendCallback callback) throws IOException {
+      writes++;
+      sent.addAll(messages);
+      if (holding) {
+        inFlight = callback;
+      } else {
+        callback.completed(null);
+      }
+    }
+
+    void complete() {
+      SendCallback callback = inFlight;
+      inFlight = null;
+      callback.completed(null);
+    }
+  }
+
+  final DdpDocumentStore store = new DdpDocumentStore();
+
+  RecordingConnection connection;
+  DdpOutboundQueue queue;
+
+  @Before
+  public void setUp() {
+    connection = new RecordingConnection();
+    DdpSession session = new DdpSession(new SimpleDdpDataSource(), connection);
+    queue = new DdpOutboundQueue(session, connection);
+  }
+
+  DdpDocument version(String id, String json) {
+    return store.acquire("items", id, Jsonable.fromJson(new JsonParser().parse(json)));
+  }
+
+  static JsonObject parse(String json) {
+    return new JsonParser().parse(json).getAsJsonObject();
+  }
+
+  @Test
+  public void addThenRemoveInBatchSendsNothing() throws IOException {
+    DdpDocument doc = version("a", "{\"n\":1}");
+
+    queue.beginBatch();
+    queue.sendDocument(null, doc);
+    queue.sendDocument(doc, null);
+    queue.endBatch();
+
+    assertEquals(0, connection.sent.size());
+    assertEquals(0, queue.getPendingBytes());
+  }
+
+  @Test
+  public void addThenRemoveWhileWritingSendsNothing() throws IOException {
+    connection.holding = true;
+    queue.send("{\"msg\":\"ready\",\"subs\":[\"s1\"]}");
+    assertEquals(1, connection.writes);
+
+    DdpDocument doc = version("a", "{\"n\":1}");
+    queue.sendDocument(null, doc);
+    queue.sendDocument(doc, null);
+
+    connection.holding = false;
+    connection.complete();
+
+    assertEquals(1, connection.sent.size());
+    assertEquals(0, queue.getPendingBytes());
+  }
+
+  @Test
+  public void behindClientGetsOnlyLatestVersion() throws IOException {
+    connection.holding = true;
+    DdpDocument v1 = version("a", "{\"n\":1,\"old\":true}");
+    queue.sendDocument(null, v1);
+    assertEquals(1, connection.writes);
+
+    // The client is still being sent v1 as the document moves on twice
+    DdpDocument v2 = version("a", "{\"n\":2,\"old\":true}");
+    DdpDocument v3 = version("a", "{\"n\":3}");
+    queue.sendDocument(v1, v2);
+    queue.sendDocument(v2, v3);
+    assertEquals(1, connection.writes);
+
+    connection.holding = false;
+    connection.complete();
+
+    assertEquals(2, connection.writes);
+    assertEquals(2, connection.sent.size());
+
+    JsonObject added = parse(connection.sent.get(0));
+    assertEquals("added", added.get("msg").getAsString());
+    assertEquals(1, added.getAsJsonObject("fields").get("n").getAsInt());
+
+    // One message, straight from v1 to v3
+    JsonObject changed = parse(connection.sent.get(1));
+    assertEquals("changed", changed.get("msg").getAsString());
+    assertEquals("a", changed.get("id").getAsString());
+    assertEquals(3, changed.getAsJsonObject("fields").get("n").getAsInt());
+    assertEquals("old", changed.getAsJsonArray("cleared").get(0).getAsString());
+  }
+
+  @Test
+  public void changedBackWhileWritingSendsNothing() throws IOException {
+    connection.holding = true;
+    DdpDocument v1 = version("a", "{\"n\":1}");
+    queue.sendDocument(null, v1);
+
+    DdpDocument v2 = version("a", "{\"n\":2}");
+    queue.sendDocument(v1, v2);
+    queue.sendDocument(v2, v1);
+
+    connection.holding = false;
+    connection.complete();
+
+    assertEquals(1, connection.sent.size());
+    assertFalse(connection.sent.get(0).contains("changed"));
+  }
+
+}
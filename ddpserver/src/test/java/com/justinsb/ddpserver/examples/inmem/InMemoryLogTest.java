@@ -0,0 +1,128 @@
+package com.justinsb.ddpserver.examples.inmem;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+import com.google.gson.JsonParser;
+import com.justinsb.ddpserver.Jsonable;
+
+public class InMemoryLogTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Records what a replay passes to the handler, one line per record
+   */
+  static class RecordingHandler implements InMemoryLog.RecordHandler {
+    final List<String> records = Lists.newArrayList();
+
+    @Override
+    public void put(String collectionName, long position, String id, Jsonable document) {
+      records.add("put " + collectionName + " " + position + " " + id + " " + document.toJson());
+    }
+
+    @Override
+    public void remove(String collectionName, long position, String id) {
+      records.add("remove " + collectionName + " " + position + " " + id);
+    }
+  }
+
+  static Jsonable doc(String json) {
+    return Jsonable.fromJson(new JsonParser().parse(json));
+  }
+
+  /**
+   * Writes three records to a new segment, returning its file
+   */
+  File writeSegment() throws IOException {
+    File dir = folder.getRoot();
+    InMemoryLog log = new InMemoryLog(dir, 1);
+    log.append("items", 1, "a", doc("{\"n\":1}"));
+    log.append("items", 2, "b", doc("{\"n\":2}"));
+    log.append("items", 3, "a", null);
+    log.sync();
+    log.close();
+    return new File(dir, InMemoryLog.segmentFileName(1));
+  }
+
+  static final List<String> EXPECTED = Lists.newArrayList("put items 1 a {\"n\":1}", "put items 2 b {\"n\":2}",
+      "remove items 3 a");
+
+  @Test
+  public void replaysCompleteSegment() throws IOException {
+    File file = writeSegment();
+
+    RecordingHandler handler = new RecordingHandler();
+    long valid = InMemoryLog.replay(file, handler);
+
+    assertEquals(file.length(), valid);
+    assertEquals(EXPECTED, handler.records);
+  }
+
+  @Test
+  public void stopsAtTornHeader() throws IOException {
+    File file = writeSegment();
+    long length = file.length();
+    appendBytes(file, new byte[] { 0, 0, 0 });
+
+    RecordingHandler handler = new RecordingHandler();
+    assertEquals(length, InMemoryLog.replay(file, handler));
+    assertEquals(EXPECTED, handler.records);
+  }
+
+  @Test
+  public void stopsAtTornRecord() throws IOException {
+    File file = writeSegment();
+    long length = file.length();
+    // A header promising more bytes than were written
+    appendBytes(file, new byte[] { 0, 0, 0, 50, 1, 2, 3, 4, 5, 6, 7 });
+
+    RecordingHandler handler = new RecordingHandler();
+    assertEquals(length, InMemoryLog.replay(file, handler));
+    assertEquals(EXPECTED, handler.records);
+  }
+
+  @Test
+  public void stopsAtCorruptRecord() throws IOException {
+    File file = writeSegment();
+    long length = file.length();
+
+    // Flip a byte in the last record's payload, so its checksum doesn't match
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(length - 1);
+      int b = raf.read();
+      raf.seek(length - 1);
+      raf.write(b ^ 0xff);
+    }
+
+    RecordingHandler handler = new RecordingHandler();
+    long valid = InMemoryLog.replay(file, handler);
+    assertEquals(EXPECTED.subList(0, 2), handler.records);
+
+    // Replaying the valid prefix gives the same records
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(valid);
+    }
+    RecordingHandler again = new RecordingHandler();
+    assertEquals(valid, InMemoryLog.replay(file, again));
+    assertEquals(handler.records, again.records);
+  }
+
+  static void appendBytes(File file, byte[] bytes) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(raf.length());
+      raf.write(bytes);
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+package com.justinsb.ddpserver.examples.inmem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.gson.JsonPrimitive;
+import com.justinsb.ddpserver.Jsonable;
+
+public class InMemorySnapshotTest {
+
+  /**
+   * Ids whose String hashCodes are all the same ("Aa" and "BB" collide, and so do their concatenations)
+   */
+  static final String[] COLLIDING = { "AaAa", "AaBB", "BBAa", "BBBB" };
+
+  static Jsonable doc(int n) {
+    return Jsonable.fromJson(new JsonPrimitive(n));
+  }
+
+  static Map<String, Jsonable> contents(InMemorySnapshot snapshot) {
+    Map<String, Jsonable> contents = Maps.newHashMap();
+    for (Entry<String, Jsonable> entry : snapshot.getItems()) {
+      assertNull("Duplicate entry " + entry.getKey(), contents.put(entry.getKey(), entry.getValue()));
+    }
+    return contents;
+  }
+
+  @Test
+  public void putReplaceRemove() {
+    Jsonable a1 = doc(1);
+    Jsonable a2 = doc(2);
+    Jsonable b = doc(3);
+
+    InMemorySnapshot s1 = InMemorySnapshot.EMPTY.with(1, "a", a1);
+    InMemorySnapshot s2 = s1.with(2, "b", b);
+    InMemorySnapshot s3 = s2.with(3, "a", a2);
+    InMemorySnapshot s4 = s3.with(4, "b", null);
+
+    assertEquals(1, s1.size());
+    assertSame(a1, s1.get("a"));
+    assertNull(s1.get("b"));
+
+    assertEquals(2, s2.size());
+    assertSame(b, s2.get("b"));
+
+    assertEquals(2, s3.size());
+    assertSame(a2, s3.get("a"));
+
+    assertEquals(1, s4.size());
+    assertFalse(s4.containsKey("b"));
+    assertEquals(4, s4.getPosition());
+
+    // Earlier snapshots don't see later writes
+    assertSame(a1, s2.get("a"));
+    assertTrue(s3.containsKey("b"));
+  }
+
+  @Test
+  public void removeMissingKeepsContents() {
+    InMemorySnapshot s1 = InMemorySnapshot.EMPTY.with(1, "a", doc(1));
+    InMemorySnapshot s2 = s1.with(2, "missing", null);
+
+    assertEquals(1, s2.size());
+    assertEquals(2, s2.getPosition());
+    assertTrue(s2.containsKey("a"));
+  }
+
+  @Test
+  public void hashCollisions() {
+    for (String id : COLLIDING) {
+      assertEquals(InMemorySnapshot.hash(COLLIDING[0]), InMemorySnapshot.hash(id));
+    }
+
+    InMemorySnapshot snapshot = InMemorySnapshot.EMPTY.with(0, "other", doc(-1));
+    for (int i = 0; i < COLLIDING.length; i++) {
+      snapshot = snapshot.with(i + 1, COLLIDING[i], doc(i));
+    }
+    assertEquals(COLLIDING.length + 1, snapshot.size());
+    for (int i = 0; i < COLLIDING.length; i++) {
+      assertEquals(doc(i).toJson(), snapshot.get(COLLIDING[i]).toJson());
+    }
+    assertEquals(COLLIDING.length + 1, contents(snapshot).size());
+
+    // Replace one of the colliding ids, then remove them down to none
+    snapshot = snapshot.with(10, COLLIDING[1], doc(100));
+    assertEquals(COLLIDING.length + 1, snapshot.size());
+    assertEquals(doc(100).toJson(), snapshot.get(COLLIDING[1]).toJson());
+
+    for (int i = 0; i < COLLIDING.length; i++) {
+      snapshot = snapshot.with(20 + i, COLLIDING[i], null);
+      assertNull(snapshot.get(COLLIDING[i]));
+      for (int j = i + 1; j < COLLIDING.length; j++) {
+        assertTrue(snapshot.containsKey(COLLIDING[j]));
+      }
+    }
+    assertEquals(1, snapshot.size());
+    assertEquals(doc(-1).toJson(), snapshot.get("other").toJson());
+  }
+
+  @Test
+  public void ofMatchesIncrementalWrites() {
+    Map<String, Jsonable> documents = Maps.newHashMap();
+    for (int i = 0; i < 1000; i++) {
+      documents.put("doc" + i, doc(i));
+    }
+    for (int i = 0; i < COLLIDING.length; i++) {
+      documents.put(COLLIDING[i], doc(-i));
+    }
+
+    InMemorySnapshot snapshot = InMemorySnapshot.of(7, documents);
+    assertEquals(7, snapshot.getPosition());
+    assertEquals(documents.size(), snapshot.size());
+    assertEquals(documents, contents(snapshot));
+    for (Entry<String, Jsonable> entry : documents.entrySet()) {
+      assertSame(entry.getValue(), snapshot.get(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void randomWritesMatchHashMap() {
+    Random random = new Random(42);
+    Map<String, Jsonable> expected = Maps.newHashMap();
+    InMemorySnapshot snapshot = InMemorySnapshot.EMPTY;
+    for (int i = 0; i < 20000; i++) {
+      String id = random.nextInt(4) == 0 ? COLLIDING[random.nextInt(COLLIDING.length)] : "d" + random.nextInt(500);
+      if (random.nextInt(3) == 0) {
+        expected.remove(id);
+        snapshot = snapshot.with(i, id, null);
+      } else {
+        Jsonable document = doc(i);
+        expected.put(id, document);
+        snapshot = snapshot.with(i, id, document);
+      }
+      assertEquals(expected.size(), snapshot.size());
+    }
+
+    assertEquals(expected, contents(snapshot));
+    for (Entry<String, Jsonable> entry : expected.entrySet()) {
+      assertSame(entry.getValue(), snapshot.get(entry.getKey()));
+    }
+  }
+
+}